@@ -0,0 +1,389 @@
+package com.example.nfccard;
+
+import android.nfc.Tag;
+import android.nfc.TagLostException;
+import android.util.Log;
+import android.util.SparseArray;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Write a template image to a batch of MIFARE Classic cards, one card after
+ * another. The write plan (which blocks to write with which key) is computed
+ * once for the template. Per-card variations (e.g. serial counters) are
+ * patched into the plan right before a card is written. The I/O thread is
+ * started with the provisioner and kept alive for the whole batch, so each
+ * presented card can be written right away.
+ * A card number (and with it the value of e.g. a serial counter) is used
+ * up by every card that was written successfully and by every failed card
+ * on which a block with a variation might have been written. Numbers are
+ * never given to two cards, but there can be gaps (see
+ * {@link Listener#onCardProcessed(long, boolean, TurnaroundStats)}).
+ *
+ * Usage: create the provisioner, set it with
+ * {@link Common#setBatchProvisioner(BatchProvisioner)} and every discovered
+ * tag will be handed to {@link #onTag(Tag)}. Call {@link #stop()} when done
+ * (this also turns batch mode off).
+ */
+public class BatchProvisioner {
+
+    /**
+     * Per-card modification of one block of the template.
+     */
+    public interface Variation {
+        /**
+         * @return Sector of the block to modify.
+         */
+        int getSector();
+
+        /**
+         * @return Index of the block within the sector.
+         */
+        int getBlock();
+
+        /**
+         * Modify the block data for the given card.
+         *
+         * @param cardNumber Number of the card within the batch
+         *                   (starting with 0).
+         * @param block      Block data (16 bytes) to modify in place.
+         */
+        void apply(long cardNumber, byte[] block);
+    }
+
+    /**
+     * Write an increasing counter (big-endian) into a block.
+     */
+    public static class SerialCounter implements Variation {
+        private final int mSector;
+        private final int mBlock;
+        private final int mOffset;
+        private final int mLength;
+        private final long mFirstValue;
+
+        /**
+         * @param sector     Sector of the block.
+         * @param block      Index of the block within the sector.
+         * @param offset     Offset of the counter within the block.
+         * @param length     Length of the counter in bytes (max. 8).
+         * @param firstValue Value for the first card of the batch.
+         */
+        public SerialCounter(int sector, int block, int offset, int length,
+                             long firstValue) {
+            if (length < 1 || length > 8 || offset < 0
+                    || offset + length > 16) {
+                throw new IllegalArgumentException(
+                        "Counter does not fit into the block.");
+            }
+            mSector = sector;
+            mBlock = block;
+            mOffset = offset;
+            mLength = length;
+            mFirstValue = firstValue;
+        }
+
+        @Override
+        public int getSector() {
+            return mSector;
+        }
+
+        @Override
+        public int getBlock() {
+            return mBlock;
+        }
+
+        @Override
+        public void apply(long cardNumber, byte[] block) {
+            long value = mFirstValue + cardNumber;
+            for (int i = mOffset + mLength - 1; i >= mOffset; i--) {
+                block[i] = (byte) value;
+                value >>>= 8;
+            }
+        }
+    }
+
+    /**
+     * Callback for processed cards. Called on the I/O thread.
+     */
+    public interface Listener {
+        /**
+         * @param cardNumber Number of the card within the batch. If the
+         *                   card failed, the next card gets the same number
+         *                   only if no block with a variation was written.
+         * @param success    True if all blocks were written.
+         * @param stats      Metrics of the batch so far.
+         */
+        void onCardProcessed(long cardNumber, boolean success,
+                             TurnaroundStats stats);
+    }
+
+    /**
+     * Precomputed writes of one sector (one authentication, two if key A
+     * does not work).
+     */
+    private static final class SectorWrite {
+        final int mSector;
+        final byte[] mKeyA;
+        final byte[] mKeyB;
+        final int[] mBlocks;
+        final byte[][] mData;
+        /**
+         * True if a variation writes to one of the blocks.
+         */
+        boolean mHasVariation = false;
+
+        SectorWrite(int sector, byte[] keyA, byte[] keyB,
+                    int[] blocks, byte[][] data) {
+            mSector = sector;
+            mKeyA = keyA;
+            mKeyB = keyB;
+            mBlocks = blocks;
+            mData = data;
+        }
+    }
+
+    private final List<SectorWrite> mPlan;
+    private final List<Variation> mVariations;
+    /**
+     * Plan data the variations write to (same order as mVariations).
+     */
+    private final List<byte[]> mVariationTargets;
+    private final TurnaroundStats mStats = new TurnaroundStats();
+    private final ThreadPoolExecutor mIOExecutor;
+    private final Listener mListener;
+    private long mNextCardNumber = 0;
+
+    /**
+     * Create a provisioner and precompute the write plan.
+     *
+     * @param template   The image to write. Same format as the result of
+     *                   {@link MCReader#readAsMuchAsPossible(SparseArray)}.
+     *                   Blocks which are {@link MCReader#NO_DATA} will be
+     *                   skipped. The manufacturer block (sector 0, block 0)
+     *                   is never written.
+     * @param keyMap     Keys (A and B) mapped to a sector for writing.
+     *                   Key A will be tried first. Key B will be used if
+     *                   key A is missing or not allowed to write (blank
+     *                   cards with the transport configuration can only
+     *                   be written with key A, because key B is readable).
+     * @param variations Per-card variations (can be empty).
+     * @param listener   Callback for processed cards (can be null).
+     * @throws IllegalArgumentException A variation targets a block that
+     *                                  is not part of the plan.
+     */
+    public BatchProvisioner(SparseArray<String[]> template,
+                            SparseArray<byte[][]> keyMap,
+                            List<Variation> variations, Listener listener) {
+        mPlan = buildPlan(template, keyMap);
+        mVariations = new ArrayList<>(variations);
+        mVariationTargets = new ArrayList<>(variations.size());
+        for (Variation v : mVariations) {
+            SectorWrite sw = findSectorWrite(v.getSector());
+            byte[] target = findPlanData(sw, v.getBlock());
+            if (target == null) {
+                throw new IllegalArgumentException("Sector " + v.getSector()
+                        + ", block " + v.getBlock() + " is not written.");
+            }
+            sw.mHasVariation = true;
+            mVariationTargets.add(target);
+        }
+        mListener = listener;
+        mIOExecutor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<>(), r -> {
+            Thread t = new Thread(r, "BatchProvisioner-io");
+            t.setDaemon(true);
+            return t;
+        });
+        // Do not wait for a thread when the first card is presented.
+        mIOExecutor.prestartCoreThread();
+    }
+
+    /**
+     * Build the write plan: one entry per sector with all blocks
+     * to write. The sector trailer is the last block of its entry.
+     */
+    private static List<SectorWrite> buildPlan(SparseArray<String[]> template,
+                                               SparseArray<byte[][]> keyMap) {
+        List<SectorWrite> plan = new ArrayList<>(template.size());
+        for (int i = 0; i < template.size(); i++) {
+            int sector = template.keyAt(i);
+            String[] blocks = template.valueAt(i);
+            byte[][] keys = keyMap.get(sector);
+            if (blocks == null || keys == null
+                    || (keys[0] == null && keys[1] == null)) {
+                continue;
+            }
+            ArrayList<Integer> indices = new ArrayList<>(blocks.length);
+            ArrayList<byte[]> data = new ArrayList<>(blocks.length);
+            for (int j = 0; j < blocks.length; j++) {
+                if (sector == 0 && j == 0) {
+                    // Manufacturer block. Read-only on genuine cards.
+                    continue;
+                }
+                byte[] bytes = Common.hex2Bytes(blocks[j]);
+                if (bytes == null || bytes.length != 16) {
+                    // NO_DATA or invalid block.
+                    continue;
+                }
+                indices.add(j);
+                data.add(bytes);
+            }
+            if (indices.isEmpty()) {
+                continue;
+            }
+            int[] blockIndices = new int[indices.size()];
+            for (int j = 0; j < blockIndices.length; j++) {
+                blockIndices[j] = indices.get(j);
+            }
+            plan.add(new SectorWrite(sector, keys[0], keys[1], blockIndices,
+                    data.toArray(new byte[0][])));
+        }
+        return plan;
+    }
+
+    private SectorWrite findSectorWrite(int sector) {
+        for (SectorWrite sw : mPlan) {
+            if (sw.mSector == sector) {
+                return sw;
+            }
+        }
+        return null;
+    }
+
+    private static byte[] findPlanData(SectorWrite sw, int block) {
+        if (sw == null) {
+            return null;
+        }
+        for (int i = 0; i < sw.mBlocks.length; i++) {
+            if (sw.mBlocks[i] == block) {
+                return sw.mData[i];
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Write the template to the given tag (asynchronously on the
+     * I/O thread). Tags presented after {@link #stop()} will be ignored.
+     *
+     * @param tag The presented card.
+     */
+    public void onTag(Tag tag) {
+        onCard(MCReader.get(tag));
+    }
+
+    /**
+     * Write the template to the card of the given reader (asynchronously on
+     * the I/O thread). Cards presented after {@link #stop()} will be ignored.
+     *
+     * @param reader Reader of the presented card (not connected yet)
+     *               or "null" if the card is not a MIFARE Classic card.
+     */
+    void onCard(final MCReader reader) {
+        final long start = System.nanoTime();
+        try {
+            mIOExecutor.execute(() -> provision(reader, start));
+        } catch (RejectedExecutionException e) {
+            Log.d("BatchProvisioner", "Batch is stopped. Card ignored.");
+        }
+    }
+
+    /**
+     * Write the template to a card. Runs on the I/O thread.
+     *
+     * @param reader Reader of the presented card or "null".
+     * @param start  Time the card was presented ({@link System#nanoTime()}).
+     */
+    private void provision(MCReader reader, long start) {
+        long cardNumber = mNextCardNumber;
+        for (int i = 0; i < mVariations.size(); i++) {
+            mVariations.get(i).apply(cardNumber, mVariationTargets.get(i));
+        }
+        boolean success = false;
+        boolean variationWritten = false;
+        if (reader != null) {
+            try {
+                reader.connect();
+                success = true;
+                for (SectorWrite sw : mPlan) {
+                    // Even if writing fails (or the tag gets lost), the
+                    // block with the variation might have been written.
+                    variationWritten |= sw.mHasVariation;
+                    if (writeSector(reader, sw) != 0) {
+                        success = false;
+                        break;
+                    }
+                }
+            } catch (TagLostException e) {
+                Log.d("BatchProvisioner", "Tag lost while writing card "
+                        + cardNumber + ".");
+                success = false;
+            } catch (Exception e) {
+                Log.d("BatchProvisioner", "Could not connect to card "
+                        + cardNumber + ".");
+                success = false;
+            } finally {
+                reader.close();
+            }
+        }
+        if (success || variationWritten) {
+            // Never give the same serial number to two cards.
+            mNextCardNumber++;
+        }
+        mStats.record(start, System.nanoTime(), success);
+        if (mListener != null) {
+            mListener.onCardProcessed(cardNumber, success, mStats);
+        }
+    }
+
+    /**
+     * Write the blocks of one sector with key A. If key A is missing or
+     * could not authenticate or write, key B will be used.
+     *
+     * @return See {@link MCReader#writeSector(int, int[], byte[][], byte[],
+     * boolean)}.
+     */
+    private static int writeSector(MCReader reader, SectorWrite sw)
+            throws TagLostException {
+        int ret = 2;
+        if (sw.mKeyA != null) {
+            ret = reader.writeSector(sw.mSector, sw.mBlocks, sw.mData,
+                    sw.mKeyA, false);
+        }
+        if (ret != 0 && ret != 1 && sw.mKeyB != null) {
+            ret = reader.writeSector(sw.mSector, sw.mBlocks, sw.mData,
+                    sw.mKeyB, true);
+        }
+        return ret;
+    }
+
+    /**
+     * Get the metrics of this batch.
+     *
+     * @return Turnaround metrics (cards/minute, latency percentiles).
+     */
+    public TurnaroundStats getStats() {
+        return mStats;
+    }
+
+    /**
+     * Stop the batch. Cards already presented will still be written.
+     * If this is the active provisioner (see
+     * {@link Common#getBatchProvisioner()}), batch mode will be turned off.
+     */
+    public void stop() {
+        if (mIOExecutor.isShutdown()) {
+            return;
+        }
+        mIOExecutor.shutdown();
+        if (Common.getBatchProvisioner() == this) {
+            Common.setBatchProvisioner(null);
+        }
+        Log.d("BatchProvisioner", "Batch finished: " + mStats);
+    }
+}
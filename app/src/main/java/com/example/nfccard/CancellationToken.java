@@ -0,0 +1,78 @@
+package com.example.nfccard;
+
+/**
+ * Cooperative cancellation token with an optional deadline for a
+ * read operation. The token is checked between RF operations
+ * (connect, authenticate, read block) by {@link MCReader}. Once it is
+ * cancelled (or the deadline has passed), the reader stops, closes the tag
+ * and returns what has been read so far.
+ * A token can be cancelled from any thread.
+ */
+public class CancellationToken {
+
+    /**
+     * A token that never gets cancelled and has no deadline. Used by the
+     * overloads that do not take a token.
+     */
+    public static final CancellationToken NONE = new CancellationToken() {
+        @Override
+        public void cancel() {
+            // Never cancel the shared token.
+        }
+    };
+
+    private final long mDeadline;
+    private final boolean mHasDeadline;
+    private volatile boolean mCancelled = false;
+
+    /**
+     * Create a token without a deadline.
+     */
+    public CancellationToken() {
+        mDeadline = 0;
+        mHasDeadline = false;
+    }
+
+    /**
+     * Create a token that will be cancelled automatically after the
+     * given time.
+     *
+     * @param timeoutMillis Time in milliseconds (from now) the
+     *                      operation is allowed to take.
+     */
+    public CancellationToken(long timeoutMillis) {
+        mDeadline = System.nanoTime() + timeoutMillis * 1000000L;
+        mHasDeadline = true;
+    }
+
+    /**
+     * Cancel the operation this token belongs to.
+     */
+    public void cancel() {
+        mCancelled = true;
+    }
+
+    /**
+     * Check if the operation should stop.
+     *
+     * @return True if the token was cancelled or the deadline has passed.
+     */
+    public boolean isCancelled() {
+        return mCancelled
+                || (mHasDeadline && System.nanoTime() - mDeadline >= 0);
+    }
+
+    /**
+     * Get the time left until the deadline.
+     *
+     * @return Milliseconds until the deadline (0 if it has passed),
+     * or {@link Long#MAX_VALUE} if there is no deadline.
+     */
+    public long remainingMillis() {
+        if (!mHasDeadline) {
+            return Long.MAX_VALUE;
+        }
+        long remaining = (mDeadline - System.nanoTime()) / 1000000L;
+        return Math.max(remaining, 0);
+    }
+}
@@ -0,0 +1,420 @@
+package com.example.nfccard;
+
+import android.nfc.TagLostException;
+import android.nfc.tech.MifareClassic;
+import android.util.SparseArray;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Quick card identification. Instead of reading the whole card, the card
+ * will be classified from the anticollision data (UID length, SAK, ATQA)
+ * and its size (no RF transaction) and verified with the manufacturer
+ * block (block 0) and optionally the sector trailer of sector 0 (one
+ * authentication and one or two reads). If the identification is not
+ * conclusive, the profile (its directory sectors and keys) and the key of
+ * sector 0 drive the full read
+ * (see {@link #createKeyMap(CardProfile, byte[], int)}).
+ * Classifications are cached per anticollision data. Block 0 is read on
+ * every tap, because a clone can have the UID of a card seen before.
+ */
+public class CardIdentifier {
+
+    /**
+     * Result of {@link #identify(MCReader, boolean)}.
+     */
+    public static class Identification {
+        private final CardProfile mProfile;
+        private final String mUID;
+        private final byte[] mManufacturerBlock;
+        private final byte[] mTrailer;
+        private final byte[] mKey;
+        private final int mRFTransactions;
+        private final boolean mConsistent;
+
+        Identification(CardProfile profile, byte[] uid,
+                       byte[] manufacturerBlock, byte[] trailer, byte[] key,
+                       int rfTransactions) {
+            mProfile = profile;
+            mUID = Common.bytes2Hex(uid);
+            mManufacturerBlock = manufacturerBlock;
+            mTrailer = trailer;
+            mKey = key;
+            mRFTransactions = rfTransactions;
+            mConsistent = manufacturerBlock == null
+                    || isManufacturerBlockConsistent(uid, manufacturerBlock);
+        }
+
+        /**
+         * @return The profile of the card ({@link #UNKNOWN_PROFILE} if
+         * the card is not known).
+         */
+        public CardProfile getProfile() {
+            return mProfile;
+        }
+
+        public String getUID() {
+            return mUID;
+        }
+
+        /**
+         * @return Block 0 or "null" if it could not be read.
+         */
+        public byte[] getManufacturerBlock() {
+            return mManufacturerBlock;
+        }
+
+        /**
+         * @return Sector trailer of sector 0 or "null" if it was not read.
+         */
+        public byte[] getTrailer() {
+            return mTrailer;
+        }
+
+        /**
+         * @return Key A of sector 0 or "null" if no key was found.
+         */
+        public byte[] getKey() {
+            return mKey;
+        }
+
+        /**
+         * @return Number of RF transactions (authentications and reads) the
+         * identification needed.
+         */
+        public int getRFTransactions() {
+            return mRFTransactions;
+        }
+
+        /**
+         * Check if the manufacturer block matches the UID (UID and BCC for
+         * 4 byte UIDs). If not, the card might be a clone.
+         *
+         * @return True if consistent or if block 0 was not read.
+         */
+        public boolean isConsistent() {
+            return mConsistent;
+        }
+
+        /**
+         * Check if the sector trailer has the transport configuration
+         * (access conditions FF0780), which is typical for blank cards.
+         *
+         * @return True if the trailer was read and has the transport
+         * configuration.
+         */
+        public boolean hasTransportConfiguration() {
+            return mTrailer != null && (mTrailer[6] & 0xFF) == 0xFF
+                    && mTrailer[7] == 0x07 && (mTrailer[8] & 0xFF) == 0x80;
+        }
+
+        /**
+         * Check if the identification is conclusive: known profile and
+         * manufacturer block read. If not, a full read is needed.
+         *
+         * @return True if no full read is needed to identify the card.
+         */
+        public boolean isConclusive() {
+            return mProfile != UNKNOWN_PROFILE && mManufacturerBlock != null;
+        }
+
+        @Override
+        public String toString() {
+            return mProfile.getName() + " (UID " + mUID + ")";
+        }
+    }
+
+    private static final byte[][] WELL_KNOWN_KEYS = {
+            MifareClassic.KEY_DEFAULT,
+            MifareClassic.KEY_MIFARE_APPLICATION_DIRECTORY,
+            MifareClassic.KEY_NFC_FORUM};
+    /**
+     * Keys of directory sectors: blank cards use the default key, cards
+     * with a MIFARE Application Directory (e.g. NFC Forum formatted) the
+     * MAD key.
+     */
+    private static final byte[][] DIRECTORY_KEYS = {
+            MifareClassic.KEY_DEFAULT,
+            MifareClassic.KEY_MIFARE_APPLICATION_DIRECTORY};
+    /**
+     * Directory sectors of cards up to 1K (MAD1).
+     */
+    private static final int[] MAD1_SECTORS = {0};
+    /**
+     * Directory sectors of cards with more than 1K (MAD2).
+     */
+    private static final int[] MAD2_SECTORS = {0, 16};
+
+    /**
+     * Profile of cards which match no known profile.
+     */
+    public static final CardProfile UNKNOWN_PROFILE = new CardProfile(
+            "Unknown MIFARE Classic compatible", CardProfile.ANY,
+            CardProfile.ANY, CardProfile.ANY, CardProfile.ANY,
+            DIRECTORY_KEYS, MAD2_SECTORS);
+
+    /**
+     * Known cards. The first matching profile wins.
+     */
+    private static final CardProfile[] PROFILES = {
+            new CardProfile("MIFARE Mini", 0x09, 0x0004, CardProfile.ANY,
+                    MifareClassic.SIZE_MINI, DIRECTORY_KEYS, MAD1_SECTORS),
+            new CardProfile("MIFARE Classic 1K", 0x08, 0x0004,
+                    CardProfile.ANY, MifareClassic.SIZE_1K, DIRECTORY_KEYS,
+                    MAD1_SECTORS),
+            new CardProfile("MIFARE Plus 2K (SL1)", 0x08, 0x0004,
+                    CardProfile.ANY, MifareClassic.SIZE_2K, DIRECTORY_KEYS,
+                    MAD2_SECTORS),
+            new CardProfile("MIFARE Classic 4K", 0x18, 0x0002,
+                    CardProfile.ANY, MifareClassic.SIZE_4K, DIRECTORY_KEYS,
+                    MAD2_SECTORS),
+            new CardProfile("Infineon MIFARE Classic 1K", 0x88, 0x0004,
+                    CardProfile.ANY, MifareClassic.SIZE_1K, DIRECTORY_KEYS,
+                    MAD1_SECTORS),
+            new CardProfile("SmartMX with MIFARE Classic 1K", 0x28,
+                    CardProfile.ANY, CardProfile.ANY, MifareClassic.SIZE_1K,
+                    DIRECTORY_KEYS, MAD1_SECTORS),
+            new CardProfile("SmartMX with MIFARE Classic 4K", 0x38,
+                    CardProfile.ANY, CardProfile.ANY, MifareClassic.SIZE_4K,
+                    DIRECTORY_KEYS, MAD2_SECTORS),
+    };
+
+    /**
+     * Maximum number of keys tried for block 0. Each try costs
+     * one RF transaction.
+     */
+    private static final int MAX_KEY_ATTEMPTS = 3;
+
+    private static final Map<Long, CardProfile> mProfileCache =
+            new HashMap<>();
+
+    private CardIdentifier() {
+    }
+
+    /**
+     * Classify a card from its anticollision data and size (no RF
+     * transaction). The result is cached.
+     *
+     * @param sak       SAK of the card.
+     * @param atqa      ATQA of the card (as returned by
+     *                  {@link android.nfc.tech.NfcA#getAtqa()}) or "null".
+     * @param uidLength Length of the UID in bytes.
+     * @param size      Size of the card (see {@link MCReader#getSize()}).
+     * @return The matching profile or {@link #UNKNOWN_PROFILE}.
+     */
+    public static CardProfile classify(int sak, byte[] atqa, int uidLength,
+                                       int size) {
+        // NfcA returns the ATQA with the least significant byte first.
+        int atqaValue = (atqa != null && atqa.length == 2)
+                ? ((atqa[1] & 0xFF) << 8) | (atqa[0] & 0xFF) : CardProfile.ANY;
+        long cacheKey = ((long) (sak & 0xFFFF) << 48)
+                | ((long) (atqaValue & 0xFFFF) << 32)
+                | ((long) (uidLength & 0xFF) << 24) | (size & 0xFFFFFF);
+        synchronized (mProfileCache) {
+            CardProfile profile = mProfileCache.get(cacheKey);
+            if (profile != null) {
+                return profile;
+            }
+            profile = UNKNOWN_PROFILE;
+            for (CardProfile p : PROFILES) {
+                if (p.matches(sak, atqaValue, uidLength, size)) {
+                    profile = p;
+                    break;
+                }
+            }
+            mProfileCache.put(cacheKey, profile);
+            return profile;
+        }
+    }
+
+    /**
+     * Classify the card of a reader (no RF transaction).
+     *
+     * @param reader The reader.
+     * @return The matching profile or {@link #UNKNOWN_PROFILE}.
+     * @see #classify(int, byte[], int, int)
+     */
+    public static CardProfile classify(MCReader reader) {
+        return classify(reader.getSak(), reader.getAtqa(),
+                reader.getUID().length, reader.getSize());
+    }
+
+    /**
+     * Identify the card of a connected reader. Block 0 (and optionally the
+     * sector trailer of sector 0) will be read with the recommended keys
+     * of the profile.
+     *
+     * @param reader      Connected reader.
+     * @param readTrailer If true, the sector trailer of sector 0 will be
+     *                    read too (one more RF transaction).
+     * @return The identification or "null" if the tag was removed.
+     * @see #identify(MCReader, boolean, CancellationToken)
+     */
+    public static Identification identify(MCReader reader,
+                                          boolean readTrailer) {
+        return identify(reader, readTrailer, CancellationToken.NONE);
+    }
+
+    /**
+     * Identify the card of a connected reader (see
+     * {@link #identify(MCReader, boolean)}). The token is checked between
+     * all RF transactions. Once it is cancelled, no more keys will be tried
+     * and the identification is not conclusive.
+     *
+     * @param reader      Connected reader.
+     * @param readTrailer If true, the sector trailer of sector 0 will be
+     *                    read too (one more RF transaction).
+     * @param token       Token to abort the identification.
+     * @return The identification or "null" if the tag was removed.
+     */
+    public static Identification identify(MCReader reader,
+                                          boolean readTrailer,
+                                          CancellationToken token) {
+        CardProfile profile = classify(reader);
+
+        int[] blocks = readTrailer ? new int[]{0, 3} : new int[]{0};
+        byte[][] result = null;
+        byte[] keyUsed = null;
+        int rfTransactions = 0;
+        try {
+            for (byte[] key : candidateKeys(profile)) {
+                if (token.isCancelled()) {
+                    break;
+                }
+                rfTransactions++;
+                result = reader.readBlocks(0, blocks, key, false, token);
+                if (result != null) {
+                    rfTransactions += blocks.length;
+                    keyUsed = key;
+                    break;
+                }
+            }
+        } catch (TagLostException e) {
+            DiagLog.log(DiagLog.EVENT_TAG_LOST, 0, -1, rfTransactions);
+            return null;
+        }
+
+        return new Identification(profile, reader.getUID(),
+                result != null ? result[0] : null,
+                (result != null && readTrailer) ? result[1] : null,
+                keyUsed, rfTransactions);
+    }
+
+    /**
+     * Create the key map for a full read
+     * ({@link MCReader#readAsMuchAsPossible(SparseArray, CancellationToken)})
+     * of a card. The directory sectors of the profile get the key found for
+     * sector 0 (or the first recommended key of the profile). If sector 0
+     * was opened with the MAD key, the card is MAD formatted and the other
+     * sectors get the NFC Forum key, otherwise the key of sector 0 (or the
+     * default key). If key A is not the default key, the default key will
+     * be tried as key B (common on formatted cards).
+     *
+     * @param profile     Profile of the card (see {@link #classify(MCReader)}
+     *                    or {@link Identification#getProfile()}).
+     * @param key         Key A of sector 0 (e.g.
+     *                    {@link Identification#getKey()}) or "null".
+     * @param sectorCount Number of sectors of the card.
+     * @return Keys (A and B) mapped to a sector.
+     */
+    public static SparseArray<byte[][]> createKeyMap(CardProfile profile,
+                                                     byte[] key,
+                                                     int sectorCount) {
+        byte[] directoryKey = key;
+        if (directoryKey == null) {
+            byte[][] keys = profile.getKeys();
+            directoryKey = (keys != null && keys.length > 0)
+                    ? keys[0] : MifareClassic.KEY_DEFAULT;
+        }
+        byte[] dataKey;
+        if (Arrays.equals(key,
+                MifareClassic.KEY_MIFARE_APPLICATION_DIRECTORY)) {
+            dataKey = MifareClassic.KEY_NFC_FORUM;
+        } else {
+            dataKey = key != null ? key : MifareClassic.KEY_DEFAULT;
+        }
+        int[] directorySectors = profile.getDirectorySectors();
+        SparseArray<byte[][]> keyMap = new SparseArray<>(sectorCount);
+        for (int i = 0; i < sectorCount; i++) {
+            keyMap.put(i, withDefaultKeyB(dataKey));
+        }
+        if (directorySectors != null) {
+            for (int sector : directorySectors) {
+                if (sector < sectorCount) {
+                    keyMap.put(sector, withDefaultKeyB(directoryKey));
+                }
+            }
+        }
+        return keyMap;
+    }
+
+    private static byte[][] withDefaultKeyB(byte[] keyA) {
+        return new byte[][]{keyA,
+                Arrays.equals(keyA, MifareClassic.KEY_DEFAULT)
+                        ? null : MifareClassic.KEY_DEFAULT};
+    }
+
+    /**
+     * Keys to try for sector 0: the recommended keys of the profile, then
+     * the user's keys of the key dictionary (see
+     * {@link Common#getDefaultKeys()}), at most {@link #MAX_KEY_ATTEMPTS}.
+     */
+    private static List<byte[]> candidateKeys(CardProfile profile) {
+        List<byte[]> keys = new ArrayList<>(MAX_KEY_ATTEMPTS);
+        addKeys(keys, profile.getKeys(), null);
+        // The well known keys of the dictionary are covered by the profile.
+        addKeys(keys, Common.getDefaultKeys(), WELL_KNOWN_KEYS);
+        return keys;
+    }
+
+    private static void addKeys(List<byte[]> keys, byte[][] candidates,
+                                byte[][] exclude) {
+        if (candidates == null) {
+            return;
+        }
+        for (byte[] candidate : candidates) {
+            if (keys.size() == MAX_KEY_ATTEMPTS) {
+                return;
+            }
+            if (!contains(keys, candidate)
+                    && (exclude == null
+                    || !contains(Arrays.asList(exclude), candidate))) {
+                keys.add(candidate);
+            }
+        }
+    }
+
+    private static boolean contains(List<byte[]> keys, byte[] key) {
+        for (byte[] k : keys) {
+            if (Arrays.equals(k, key)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Check if block 0 starts with the UID and (for 4 byte UIDs) has
+     * a valid BCC (XOR of the UID bytes).
+     */
+    private static boolean isManufacturerBlockConsistent(byte[] uid,
+                                                         byte[] block) {
+        if (uid.length > block.length) {
+            return false;
+        }
+        for (int i = 0; i < uid.length; i++) {
+            if (uid[i] != block[i]) {
+                return false;
+            }
+        }
+        if (uid.length == 4) {
+            byte bcc = (byte) (uid[0] ^ uid[1] ^ uid[2] ^ uid[3]);
+            return block[4] == bcc;
+        }
+        return true;
+    }
+}
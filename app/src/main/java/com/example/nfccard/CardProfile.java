@@ -0,0 +1,93 @@
+package com.example.nfccard;
+
+import android.nfc.tech.MifareClassic;
+
+/**
+ * A known kind of card, identified by the anticollision data (SAK, ATQA,
+ * UID length) and the size reported by {@link MifareClassic}. Each profile
+ * knows its directory sectors (MIFARE Application Directory, MAD1 or MAD2)
+ * and the keys that are worth trying first on them.
+ * See {@link CardIdentifier}.
+ */
+public class CardProfile {
+
+    /**
+     * Matches any value.
+     */
+    public static final int ANY = -1;
+
+    /**
+     * Only the bit frame anticollision bits of the ATQA are compared. The
+     * UID size bits are covered by the UID length.
+     */
+    private static final int ATQA_MASK = 0x001F;
+
+    private final String mName;
+    private final int mSak;
+    private final int mAtqa;
+    private final int mUIDLength;
+    private final int mSize;
+    private final byte[][] mKeys;
+    private final int[] mDirectorySectors;
+
+    /**
+     * @param name      Name of the card.
+     * @param sak       SAK or {@link #ANY}.
+     * @param atqa      ATQA (e.g. 0x0004) or {@link #ANY}.
+     * @param uidLength UID length in bytes or {@link #ANY}.
+     * @param size      Size (e.g. {@link MifareClassic#SIZE_1K})
+     *                  or {@link #ANY}.
+     * @param keys      Recommended keys of the directory sectors
+     *                  (most likely first). Also used for the
+     *                  identification (sector 0).
+     * @param directorySectors Sectors of the MIFARE Application Directory
+     *                  (e.g. 0 for MAD1, 0 and 16 for MAD2) or "null".
+     */
+    public CardProfile(String name, int sak, int atqa, int uidLength,
+                       int size, byte[][] keys, int[] directorySectors) {
+        mName = name;
+        mSak = sak;
+        mAtqa = atqa;
+        mUIDLength = uidLength;
+        mSize = size;
+        mKeys = keys;
+        mDirectorySectors = directorySectors;
+    }
+
+    /**
+     * Check if a card matches this profile.
+     *
+     * @param sak       SAK of the card.
+     * @param atqa      ATQA of the card or {@link #ANY} if it is unknown.
+     * @param uidLength UID length of the card.
+     * @param size      Size of the card.
+     * @return True if all (known) values match.
+     */
+    public boolean matches(int sak, int atqa, int uidLength, int size) {
+        return (mSak == ANY || mSak == sak)
+                && (mAtqa == ANY || atqa == ANY
+                        || (mAtqa & ATQA_MASK) == (atqa & ATQA_MASK))
+                && (mUIDLength == ANY || mUIDLength == uidLength)
+                && (mSize == ANY || mSize == size);
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    public byte[][] getKeys() {
+        return mKeys;
+    }
+
+    /**
+     * @return Sectors of the MIFARE Application Directory or "null".
+     */
+    public int[] getDirectorySectors() {
+        return mDirectorySectors;
+    }
+
+    @Override
+    public String toString() {
+        return mName;
+    }
+}
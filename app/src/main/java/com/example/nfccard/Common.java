@@ -5,13 +5,22 @@ import android.content.Context;
 import android.content.SharedPreferences;
 import android.content.pm.PackageManager;
 import android.nfc.Tag;
+import android.nfc.tech.MifareClassic;
 import android.preference.PreferenceManager;
 import android.util.Log;
 import android.util.SparseArray;
 import android.widget.Toast;
 
+import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.Locale;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 public class Common extends Application {
 
@@ -29,6 +38,54 @@ public class Common extends Application {
     private int mKeyMapStatus = 0;
     private static SparseArray<byte[][]> mKeyMap = null;
 
+    /**
+     * Maximum time in milliseconds a complete read operation may take.
+     */
+    public static final long READ_TIMEOUT = 5000;
+    private static CancellationToken mReadToken = null;
+    private static final Object mReadLock = new Object();
+    /**
+     * Worker for the tap path (connecting, identifying, reading). Reads must
+     * not run on the UI thread. Otherwise a new tag or leaving the screen
+     * could only be handled after the read is done, and
+     * {@link #cancelRead()} would have nothing to cancel.
+     * The thread is started by {@link #warmUp()} and never stops.
+     */
+    private static final ThreadPoolExecutor mReadExecutor =
+            new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+                    new LinkedBlockingQueue<>(), r -> {
+                Thread t = new Thread(r, "Common-read");
+                t.setDaemon(true);
+                return t;
+            });
+    private static volatile BatchProvisioner mBatchProvisioner = null;
+    private static volatile ScanHistory mScanHistory = null;
+    private static final Object mScanHistoryLock = new Object();
+    private static volatile boolean mQuickIdentifyMode = false;
+
+    /**
+     * Name of the optional key dictionary (one hex key per line, lines
+     * starting with "#" are comments) in the app's files directory.
+     */
+    public static final String KEY_FILE = "std.keys";
+    private static final char[] HEX_CHARS = "0123456789ABCDEF".toCharArray();
+    /**
+     * True once everything the tap path needs is loaded (see
+     * {@link #warmUp()}).
+     */
+    private static volatile boolean mWarm = false;
+    // Dedicated locks, so loading (e.g. reading the key file) only blocks
+    // callers which need the data, not e.g. startRead() or cancelRead().
+    private static final Object mSettingsLock = new Object();
+    private static final Object mKeysLock = new Object();
+    private static volatile boolean mSettingsLoaded = false;
+    private static volatile boolean mUseRetryAuth = false;
+    private static volatile int mRetryAuthCount = 1;
+    private static volatile byte[][] mDefaultKeys = null;
+    // Strong reference. SharedPreferences only keeps a weak one.
+    private static SharedPreferences.OnSharedPreferenceChangeListener
+            mPrefListener;
+
     /**
      * Initialize the {@link #mAppContext} with the application context.
      * Some functions depend on this context.
@@ -37,6 +94,7 @@ public class Common extends Application {
     public void onCreate() {
         super.onCreate();
         mAppContext = getApplicationContext();
+        warmUp();
 //        mScale = getResources().getDisplayMetrics().density;
 //
 //        try {
@@ -47,6 +105,142 @@ public class Common extends Application {
 //        }
     }
 
+    /**
+     * Start the worker threads of the tap path (read worker, see
+     * {@link #runRead(Runnable)}, and the workers of {@link MCReader}),
+     * load everything the first tap needs (settings, key dictionary) and
+     * warm up the decoding code in a background thread, so the first tap
+     * after a cold start is as fast as the following ones.
+     * Once this is done, {@link #mWarm} is true and the tap path takes
+     * the fast path (no loading checks, no locks). If a tag is read before,
+     * the missing data will be loaded on demand.
+     */
+    private static void warmUp() {
+        Thread t = new Thread(() -> {
+            long start = System.nanoTime();
+            try {
+                mReadExecutor.prestartCoreThread();
+                MCReader.startWorkers();
+                loadSettings();
+                loadDefaultKeys();
+                MCReader.warmUp();
+                mWarm = true;
+                Log.d("Common", "Warm up done in "
+                        + (System.nanoTime() - start) / 1000000 + " ms.");
+            } catch (RuntimeException e) {
+                // Data will be loaded on demand.
+                Log.e("Common", "Error during warm up.", e);
+            }
+        }, "Common-warmup");
+        t.start();
+    }
+
+    /**
+     * Load the settings used while reading into memory and keep them
+     * up to date. This way the reader does not have to query the
+     * shared preferences for every authentication.
+     */
+    private static void loadSettings() {
+        if (mSettingsLoaded) {
+            return;
+        }
+        synchronized (mSettingsLock) {
+            if (mSettingsLoaded) {
+                return;
+            }
+            SharedPreferences prefs = getPreferences();
+            updateSettings(prefs);
+            mPrefListener = (sharedPreferences, key) ->
+                    updateSettings(sharedPreferences);
+            prefs.registerOnSharedPreferenceChangeListener(mPrefListener);
+            mSettingsLoaded = true;
+        }
+    }
+
+    private static void updateSettings(SharedPreferences prefs) {
+        mUseRetryAuth = prefs.getBoolean("use_retry_authentication", false);
+        mRetryAuthCount = prefs.getInt("retry_authentication_count", 1);
+    }
+
+    /**
+     * Get the "use_retry_authentication" setting.
+     *
+     * @return True if a failed authentication should be retried.
+     */
+    public static boolean useRetryAuthentication() {
+        if (!mWarm) {
+            loadSettings();
+        }
+        return mUseRetryAuth;
+    }
+
+    /**
+     * Get the "retry_authentication_count" setting.
+     *
+     * @return Number of retries for a failed authentication.
+     */
+    public static int getRetryAuthenticationCount() {
+        if (!mWarm) {
+            loadSettings();
+        }
+        return mRetryAuthCount;
+    }
+
+    /**
+     * Load the key dictionary: the well known keys and the keys
+     * from {@link #KEY_FILE} (if present).
+     */
+    private static void loadDefaultKeys() {
+        if (mDefaultKeys != null) {
+            return;
+        }
+        synchronized (mKeysLock) {
+            if (mDefaultKeys != null) {
+                return;
+            }
+            LinkedHashSet<String> keys = new LinkedHashSet<>();
+            keys.add(bytes2Hex(MifareClassic.KEY_DEFAULT));
+            keys.add(bytes2Hex(MifareClassic.KEY_MIFARE_APPLICATION_DIRECTORY));
+            keys.add(bytes2Hex(MifareClassic.KEY_NFC_FORUM));
+            File keyFile = mAppContext != null
+                    ? new File(mAppContext.getFilesDir(), KEY_FILE) : null;
+            if (keyFile != null && keyFile.exists()) {
+                try (BufferedReader reader = new BufferedReader(
+                        new FileReader(keyFile))) {
+                    String line;
+                    while ((line = reader.readLine()) != null) {
+                        line = line.trim();
+                        if (line.length() == 12 && !line.startsWith("#")
+                                && hex2Bytes(line) != null) {
+                            keys.add(line.toUpperCase(Locale.US));
+                        }
+                    }
+                } catch (IOException e) {
+                    Log.d("Common", "Error while reading key file.");
+                }
+            }
+            byte[][] ret = new byte[keys.size()][];
+            int i = 0;
+            for (String key : keys) {
+                ret[i++] = hex2Bytes(key);
+            }
+            mDefaultKeys = ret;
+        }
+    }
+
+    /**
+     * Get the key dictionary (the well known keys and the keys
+     * from {@link #KEY_FILE}).
+     *
+     * @return Keys (6 bytes each).
+     */
+    public static byte[][] getDefaultKeys() {
+        if (!mWarm) {
+            loadDefaultKeys();
+        }
+        return mDefaultKeys;
+    }
+
     /**
      * Create a connected {@link MCReader} if there is a present MIFARE Classic
      * tag. If there is no MIFARE Classic tag an error
@@ -56,26 +250,26 @@ public class Common extends Application {
      * @return A connected {@link MCReader} or "null" if no tag was present.
      */
     public static MCReader checkForTagAndCreateReader(Context context) {
+        return checkForTagAndCreateReader(context, CancellationToken.NONE);
+    }
+
+    /**
+     * Create a connected {@link MCReader} if there is a present MIFARE Classic
+     * tag. Connecting is aborted if the token gets cancelled.
+     *
+     * @param context The Context in which the error Toast will be shown.
+     * @param token   Token to abort connecting (see {@link #startRead(long)}).
+     * @return A connected {@link MCReader} or "null" if no tag was present
+     * or connecting was cancelled.
+     * @see #checkForTagAndCreateReader(Context)
+     */
+    public static MCReader checkForTagAndCreateReader(Context context,
+                                                      CancellationToken token) {
         MCReader reader;
-        boolean tagLost = false;
         // Check for tag.
-        if (mTag != null && (reader = MCReader.get(mTag)) != null) {
-            try {
-                reader.connect();
-                Log.d("MCReader", "reader connect");
-            } catch (Exception e) {
-                Log.d("MCReader", "catch connect");
-                tagLost = true;
-            }
-            if (!tagLost && !reader.isConnected()) {
-                Log.d("MCReader", "reader close");
-                reader.close();
-                tagLost = true;
-            }
-            if (!tagLost) {
-                Log.d("MCReader", "not exist tagLost");
-                return reader;
-            }
+        if (mTag != null && (reader = MCReader.get(mTag)) != null
+                && connectReader(reader, token) != null) {
+            return reader;
         }
 
         // Error. The tag is gone.
@@ -84,11 +278,110 @@ public class Common extends Application {
         return null;
     }
 
+    /**
+     * Connect the reader to its tag.
+     *
+     * @param reader The reader.
+     * @param token  Token to abort connecting.
+     * @return The connected reader or "null" if the tag is gone or
+     * connecting was cancelled.
+     * @see #checkForTagAndCreateReader(Context, CancellationToken)
+     */
+    static MCReader connectReader(MCReader reader, CancellationToken token) {
+        boolean tagLost = false;
+        try {
+            // Connecting is logged by the reader (see DiagLog).
+            reader.connect(token);
+        } catch (Exception e) {
+            tagLost = true;
+        }
+        if (!tagLost && !reader.isConnected()) {
+            DiagLog.log(DiagLog.EVENT_CLOSE, -1, -1, 0);
+            reader.close();
+            tagLost = true;
+        }
+        return tagLost ? null : reader;
+    }
+
+    /**
+     * Set the new tag. A read which is still running on the previous
+     * tag will be cancelled.
+     *
+     * @param tag The new tag.
+     */
     public static void setTag(Tag tag) {
+        cancelRead();
         mTag = tag;
         mUID = tag.getId();
     }
 
+    /**
+     * Start a new read operation. The token of the previous read operation
+     * (if any) will be cancelled, so a stale read does not block the
+     * new one.
+     *
+     * @param timeoutMillis Deadline of the read operation in milliseconds.
+     * @return The token to pass through the read operation.
+     * @see #cancelRead()
+     */
+    public static CancellationToken startRead(long timeoutMillis) {
+        CancellationToken token = new CancellationToken(timeoutMillis);
+        CancellationToken previous;
+        synchronized (mReadLock) {
+            previous = mReadToken;
+            mReadToken = token;
+        }
+        if (previous != null) {
+            previous.cancel();
+        }
+        return token;
+    }
+
+    /**
+     * Run a read operation on the read worker. Read operations run one after
+     * another. A read which is still running when the next one is started
+     * (see {@link #startRead(long)}) gets cancelled, so it only delays the
+     * next one until the reader checks its token.
+     *
+     * @param read The read operation. It should check the token returned
+     *             by {@link #startRead(long)}.
+     */
+    public static void runRead(Runnable read) {
+        mReadExecutor.execute(read);
+    }
+
+    /**
+     * Check if a read operation is still the current one. Results of read
+     * operations which were replaced by a newer one (or cancelled with
+     * {@link #cancelRead()}) should be dropped.
+     *
+     * @param token The token of the read operation.
+     * @return True if no other read operation was started and the read
+     * operation was not cancelled.
+     */
+    public static boolean isCurrentRead(CancellationToken token) {
+        synchronized (mReadLock) {
+            return mReadToken == token;
+        }
+    }
+
+    /**
+     * Cancel the current read operation (if any). E.g. because the user
+     * left the screen.
+     *
+     * @see #startRead(long)
+     */
+    public static void cancelRead() {
+        CancellationToken previous;
+        synchronized (mReadLock) {
+            previous = mReadToken;
+            mReadToken = null;
+        }
+        if (previous != null) {
+            previous.cancel();
+        }
+    }
+
     /**
      * Get the shared preferences with application context for saving
      * and loading ("global") values.
@@ -100,6 +393,26 @@ public class Common extends Application {
     }
 
 
+    /**
+     * Get the scan history of the app.
+     *
+     * @return The scan history or "null" if there is no application
+     * context (yet).
+     */
+    public static ScanHistory getScanHistory() {
+        // Called for every tap. No lock once the history exists.
+        ScanHistory history = mScanHistory;
+        if (history == null && mAppContext != null) {
+            synchronized (mScanHistoryLock) {
+                if (mScanHistory == null) {
+                    mScanHistory = new ScanHistory(mAppContext);
+                }
+                history = mScanHistory;
+            }
+        }
+        return history;
+    }
+
     /**
      * Convert an array of bytes into a string of hex values.
      *
@@ -107,13 +420,17 @@ public class Common extends Application {
      * @return The bytes in hex string format.
      */
     public static String bytes2Hex(byte[] bytes) {
-        StringBuilder ret = new StringBuilder();
-        if (bytes != null) {
-            for (Byte b : bytes) {
-                ret.append(String.format("%02X", b.intValue() & 0xFF));
-            }
+        if (bytes == null) {
+            return "";
         }
-        return ret.toString();
+        // Called for every block read. Avoid String.format().
+        char[] ret = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            int v = bytes[i] & 0xFF;
+            ret[i * 2] = HEX_CHARS[v >>> 4];
+            ret[i * 2 + 1] = HEX_CHARS[v & 0x0F];
+        }
+        return new String(ret);
     }
 
     /**
@@ -161,6 +478,49 @@ public class Common extends Application {
     }
 
 
+    /**
+     * Check if quick identification is on (see {@link CardIdentifier}).
+     *
+     * @return True if tapped cards should only be identified.
+     */
+    public static boolean isQuickIdentifyMode() {
+        return mQuickIdentifyMode;
+    }
+
+    /**
+     * Turn quick identification on or off. If on, tapped cards will only
+     * be identified (see {@link CardIdentifier}) and only read completely
+     * if the identification is not conclusive.
+     *
+     * @param quickIdentifyMode True to turn quick identification on.
+     */
+    public static void setQuickIdentifyMode(boolean quickIdentifyMode) {
+        mQuickIdentifyMode = quickIdentifyMode;
+    }
+
+    /**
+     * Get the active batch provisioner.
+     *
+     * @return The batch provisioner or "null" if batch mode is off.
+     */
+    public static BatchProvisioner getBatchProvisioner() {
+        return mBatchProvisioner;
+    }
+
+    /**
+     * Turn batch mode on (all discovered tags will be written by the
+     * provisioner) or off. The previous provisioner will be stopped.
+     *
+     * @param provisioner The provisioner or "null" to turn batch mode off.
+     */
+    public static void setBatchProvisioner(BatchProvisioner provisioner) {
+        BatchProvisioner previous = mBatchProvisioner;
+        mBatchProvisioner = provisioner;
+        if (previous != null && previous != provisioner) {
+            previous.stop();
+        }
+    }
+
     public static SparseArray<byte[][]> getKeyMap() {
         return mKeyMap;
     }
@@ -0,0 +1,182 @@
+package com.example.nfccard;
+
+import android.util.Log;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Diagnostic logger for the hot path (per block, per sector). Every event
+ * is stored as a fixed-size record (event ID, sector, block, result code,
+ * timestamp) in a preallocated ring buffer. Logging an event does not
+ * allocate anything and does not build strings. The records are only
+ * formatted by {@link #dump(String)}, which happens automatically when
+ * an error is logged with {@link #error(int, int, int, int)}.
+ * If the buffer is full, the oldest records will be overwritten.
+ */
+public final class DiagLog {
+
+    public static final int EVENT_READ_START = 1;
+    public static final int EVENT_READ_DONE = 2;
+    public static final int EVENT_READ_CANCELLED = 3;
+    public static final int EVENT_CONNECT = 4;
+    public static final int EVENT_CONNECT_ERROR = 5;
+    public static final int EVENT_CONNECT_TIMEOUT = 6;
+    public static final int EVENT_CLOSE = 7;
+    public static final int EVENT_CLOSE_ERROR = 8;
+    public static final int EVENT_AUTH_ERROR = 9;
+    public static final int EVENT_READ_BLOCK = 10;
+    public static final int EVENT_READ_BLOCK_ERROR = 11;
+    public static final int EVENT_WRITE_BLOCK_ERROR = 12;
+    public static final int EVENT_TAG_LOST = 13;
+    public static final int EVENT_DECODE_ERROR = 14;
+    // Result of the authentication events: 0 = key A, 1 = key B.
+    public static final int EVENT_AUTH = 15;
+    public static final int EVENT_AUTH_FAILED = 16;
+
+    private static final String[] EVENT_NAMES = {"?", "READ_START",
+            "READ_DONE", "READ_CANCELLED", "CONNECT", "CONNECT_ERROR",
+            "CONNECT_TIMEOUT", "CLOSE", "CLOSE_ERROR", "AUTH_ERROR",
+            "READ_BLOCK", "READ_BLOCK_ERROR", "WRITE_BLOCK_ERROR",
+            "TAG_LOST", "DECODE_ERROR", "AUTH", "AUTH_FAILED"};
+
+    /**
+     * Number of records in the ring buffer (power of two).
+     */
+    private static final int CAPACITY = 1024;
+    private static final int MASK = CAPACITY - 1;
+    /**
+     * Maximum length of one Android log entry written by
+     * {@link #dump(String)} (logcat truncates entries at about 4 KB).
+     */
+    private static final int MAX_CHUNK_LENGTH = 3800;
+    /**
+     * Upper bound of the length of one formatted record.
+     */
+    private static final int MAX_RECORD_LENGTH = 96;
+
+    /**
+     * Two longs per record: timestamp ({@link System#nanoTime()}) and
+     * the packed event (16 bit each: event, sector, block, result).
+     */
+    private static final long[] mRecords = new long[CAPACITY * 2];
+    private static final AtomicLong mNext = new AtomicLong(0);
+    private static volatile boolean mEnabled = true;
+
+    private DiagLog() {
+    }
+
+    /**
+     * Enable or disable the logger.
+     *
+     * @param enabled False to ignore all events.
+     */
+    public static void setEnabled(boolean enabled) {
+        mEnabled = enabled;
+    }
+
+    /**
+     * Log an event. Does not allocate.
+     *
+     * @param event  One of the EVENT constants.
+     * @param sector Sector index or -1.
+     * @param block  Block index or -1.
+     * @param result Result code (event specific) or 0.
+     */
+    public static void log(int event, int sector, int block, int result) {
+        if (!mEnabled) {
+            return;
+        }
+        int slot = (int) (mNext.getAndIncrement() & MASK) * 2;
+        mRecords[slot] = System.nanoTime();
+        mRecords[slot + 1] = ((long) (event & 0xFFFF) << 48)
+                | ((long) (sector & 0xFFFF) << 32)
+                | ((long) (block & 0xFFFF) << 16)
+                | (result & 0xFFFF);
+    }
+
+    /**
+     * Log an error event and dump the buffer (see {@link #dump(String)}).
+     *
+     * @param event  One of the EVENT constants.
+     * @param sector Sector index or -1.
+     * @param block  Block index or -1.
+     * @param result Result code (event specific) or 0.
+     */
+    public static void error(int event, int sector, int block, int result) {
+        log(event, sector, block, result);
+        if (mEnabled) {
+            dump("DiagLog");
+        }
+    }
+
+    /**
+     * Write all records (oldest first) to the Android log. The records are
+     * logged in chunks of less than {@link #MAX_CHUNK_LENGTH} characters,
+     * because logcat truncates longer entries. Records which are logged
+     * while dumping might be skipped or mixed up.
+     *
+     * @param tag Tag for the Android log.
+     */
+    public static void dump(String tag) {
+        long next = mNext.get();
+        long first = Math.max(0, next - CAPACITY);
+        StringBuilder sb = new StringBuilder(MAX_CHUNK_LENGTH);
+        long base = first < next ? mRecords[(int) (first & MASK) * 2] : 0;
+        for (long i = first; i < next; i++) {
+            if (sb.length() > MAX_CHUNK_LENGTH - MAX_RECORD_LENGTH) {
+                Log.d(tag, sb.toString());
+                sb.setLength(0);
+            }
+            appendRecord(sb, i, base);
+        }
+        if (sb.length() > 0) {
+            Log.d(tag, sb.toString());
+        }
+    }
+
+    /**
+     * Format all records (oldest first), one record per line.
+     *
+     * @return The formatted records.
+     */
+    public static String format() {
+        long next = mNext.get();
+        long first = Math.max(0, next - CAPACITY);
+        StringBuilder sb = new StringBuilder(
+                (int) (next - first) * MAX_RECORD_LENGTH);
+        long base = first < next ? mRecords[(int) (first & MASK) * 2] : 0;
+        for (long i = first; i < next; i++) {
+            appendRecord(sb, i, base);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Append one record (and a line break).
+     *
+     * @param sb    Target.
+     * @param index Index of the record.
+     * @param base  Timestamp of the first record.
+     */
+    private static void appendRecord(StringBuilder sb, long index,
+                                     long base) {
+        int slot = (int) (index & MASK) * 2;
+        long time = mRecords[slot];
+        long packed = mRecords[slot + 1];
+        int event = (int) (packed >>> 48) & 0xFFFF;
+        sb.append('+').append((time - base) / 1000).append("us ")
+                .append(event < EVENT_NAMES.length
+                        ? EVENT_NAMES[event] : String.valueOf(event))
+                .append(" sector=").append((short) (packed >>> 32))
+                .append(" block=").append((short) (packed >>> 16))
+                .append(" result=").append((short) packed)
+                .append('\n');
+    }
+
+    /**
+     * Remove all records.
+     */
+    public static void clear() {
+        mNext.set(0);
+    }
+}
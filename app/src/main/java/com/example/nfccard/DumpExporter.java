@@ -0,0 +1,617 @@
+package com.example.nfccard;
+
+import android.database.Cursor;
+import android.util.SparseArray;
+
+import java.io.Closeable;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Stream card dumps and the scan history to an {@link OutputStream} or a
+ * channel (e.g. a {@link java.nio.channels.FileChannel}). All data is
+ * encoded directly into one reusable buffer, so no string of a whole card
+ * (or of the whole history) is ever built. Memory usage is constant,
+ * no matter how many dumps are exported.
+ *
+ * Usage: {@link #begin()}, any number of
+ * {@link #writeCard(String, SparseArray, int)} or
+ * {@link #writeHistory(ScanHistory, long)}, {@link #end()} and
+ * {@link #close()}. After an incremental history export
+ * ({@link #writeNewHistory(ScanHistory)}), call
+ * {@link #commitHistoryCheckpoint()} at the very end.
+ */
+public class DumpExporter implements Closeable, Flushable {
+
+    /**
+     * MCT style text ("+Sector: X" followed by one hex block per line).
+     */
+    public static final int FORMAT_TEXT = 0;
+    /**
+     * JSON array with one object per card or history record.
+     */
+    public static final int FORMAT_JSON = 1;
+    /**
+     * CSV with one line per block or history record.
+     */
+    public static final int FORMAT_CSV = 2;
+    /**
+     * Raw binary (.mfd). Always the full image of the card (e.g. 1024 bytes
+     * for a 1K card), every sector at its fixed offset. Unknown blocks and
+     * sectors are written as zeros.
+     */
+    public static final int FORMAT_MFD = 3;
+
+    /**
+     * Preference key of the ID of the last exported history record.
+     */
+    public static final String PREF_HISTORY_CHECKPOINT =
+            "history_export_checkpoint";
+
+    private static final int BUFFER_SIZE = 8192;
+    private static final byte[] HEX = {'0', '1', '2', '3', '4', '5', '6',
+            '7', '8', '9', 'A', 'B', 'C', 'D', 'E', 'F'};
+
+    private final OutputStream mOut;
+    private final WritableByteChannel mChannel;
+    private final int mFormat;
+    private final byte[] mBuffer = new byte[BUFFER_SIZE];
+    private final ByteBuffer mByteBuffer = ByteBuffer.wrap(mBuffer);
+    private final byte[] mDigits = new byte[20];
+    private int mPos = 0;
+    private boolean mFirstEntry = true;
+    private int mHistoryCount = 0;
+    /**
+     * ID of the last record of {@link #writeNewHistory(ScanHistory)} or -1.
+     */
+    private long mPendingCheckpoint = -1;
+    /**
+     * True if {@link #end()} was successful (and {@link #close()}, if it
+     * was called).
+     */
+    private boolean mEnded = false;
+    /**
+     * Next sector of the current .mfd image (see
+     * {@link #writeRawSector(int, byte[][])}).
+     */
+    private int mNextMfdSector = 0;
+
+    /**
+     * @param out    Stream to write to.
+     * @param format One of the FORMAT constants.
+     */
+    public DumpExporter(OutputStream out, int format) {
+        this(out, null, format);
+    }
+
+    /**
+     * @param channel Channel to write to (e.g. a FileChannel).
+     * @param format  One of the FORMAT constants.
+     */
+    public DumpExporter(WritableByteChannel channel, int format) {
+        this(null, channel, format);
+    }
+
+    private DumpExporter(OutputStream out, WritableByteChannel channel,
+                         int format) {
+        if (format < FORMAT_TEXT || format > FORMAT_MFD) {
+            throw new IllegalArgumentException("Unknown format " + format);
+        }
+        mOut = out;
+        mChannel = channel;
+        mFormat = format;
+    }
+
+    /**
+     * Start the export (JSON array, CSV header).
+     *
+     * @throws IOException Error while writing.
+     */
+    public void begin() throws IOException {
+        mFirstEntry = true;
+        if (mFormat == FORMAT_JSON) {
+            writeAscii("[");
+        }
+    }
+
+    /**
+     * Finish the export (JSON array) and flush the buffer.
+     *
+     * @throws IOException Error while writing.
+     */
+    public void end() throws IOException {
+        if (mFormat == FORMAT_JSON) {
+            writeAscii(mFirstEntry ? "]\n" : "\n]\n");
+        }
+        flush();
+        mEnded = true;
+    }
+
+    /**
+     * Write one card. For {@link #FORMAT_MFD}, the size of the card is
+     * guessed from the highest sector of the dump (the smallest of
+     * MIFARE Classic 1K, 2K and 4K it fits into). Use
+     * {@link #writeCard(String, SparseArray, int)} if the size is known.
+     *
+     * @param uid  UID of the card (hex) or "null". Not part of the
+     *             {@link #FORMAT_MFD} format.
+     * @param dump The card, as returned by
+     *             {@link MCReader#readAsMuchAsPossible(SparseArray)}.
+     * @throws IOException Error while writing.
+     * @see #writeCard(String, SparseArray, int)
+     */
+    public void writeCard(String uid, SparseArray<String[]> dump)
+            throws IOException {
+        int highest = dump.size() > 0 ? dump.keyAt(dump.size() - 1) : 0;
+        int sectorCount;
+        if (highest < 16) {
+            sectorCount = 16;
+        } else if (highest < 32) {
+            sectorCount = 32;
+        } else {
+            sectorCount = 40;
+        }
+        writeCard(uid, dump, sectorCount);
+    }
+
+    /**
+     * Write one card.
+     *
+     * @param uid         UID of the card (hex) or "null". Not part of the
+     *                    {@link #FORMAT_MFD} format.
+     * @param dump        The card, as returned by
+     *                    {@link MCReader#readAsMuchAsPossible(SparseArray)}.
+     * @param sectorCount Number of sectors of the card (see
+     *                    {@link MCReader#getSectorCount()}). Only used by
+     *                    {@link #FORMAT_MFD} to write the full image.
+     * @throws IOException Error while writing.
+     * @throws IllegalArgumentException The dump contains sectors beyond
+     *                                  the sector count.
+     */
+    public void writeCard(String uid, SparseArray<String[]> dump,
+                          int sectorCount) throws IOException {
+        switch (mFormat) {
+            case FORMAT_TEXT:
+                writeCardText(dump);
+                break;
+            case FORMAT_JSON:
+                writeCardJson(uid, dump);
+                break;
+            case FORMAT_CSV:
+                writeCardCsv(uid, dump);
+                break;
+            case FORMAT_MFD:
+                writeCardMfd(dump, sectorCount);
+                break;
+        }
+        mFirstEntry = false;
+    }
+
+    private void writeCardText(SparseArray<String[]> dump)
+            throws IOException {
+        for (int i = 0; i < dump.size(); i++) {
+            writeAscii("+Sector: ");
+            writeDecimal(dump.keyAt(i));
+            writeByte('\n');
+            for (String block : dump.valueAt(i)) {
+                writeAscii(block);
+                writeByte('\n');
+            }
+        }
+    }
+
+    private void writeCardJson(String uid, SparseArray<String[]> dump)
+            throws IOException {
+        writeAscii(mFirstEntry ? "\n{\"uid\":" : ",\n{\"uid\":");
+        writeJsonString(uid);
+        writeAscii(",\"sectors\":{");
+        for (int i = 0; i < dump.size(); i++) {
+            if (i > 0) {
+                writeByte(',');
+            }
+            writeByte('"');
+            writeDecimal(dump.keyAt(i));
+            writeAscii("\":[");
+            String[] blocks = dump.valueAt(i);
+            for (int j = 0; j < blocks.length; j++) {
+                if (j > 0) {
+                    writeByte(',');
+                }
+                writeJsonString(blocks[j]);
+            }
+            writeByte(']');
+        }
+        writeAscii("}}");
+    }
+
+    private void writeCardCsv(String uid, SparseArray<String[]> dump)
+            throws IOException {
+        if (mFirstEntry) {
+            writeAscii("uid,sector,block,data\n");
+        }
+        for (int i = 0; i < dump.size(); i++) {
+            String[] blocks = dump.valueAt(i);
+            for (int j = 0; j < blocks.length; j++) {
+                if (uid != null) {
+                    writeAscii(uid);
+                }
+                writeByte(',');
+                writeDecimal(dump.keyAt(i));
+                writeByte(',');
+                writeDecimal(j);
+                writeByte(',');
+                writeAscii(blocks[j]);
+                writeByte('\n');
+            }
+        }
+    }
+
+    private void writeCardMfd(SparseArray<String[]> dump, int sectorCount)
+            throws IOException {
+        if (dump.size() > 0 && dump.keyAt(dump.size() - 1) >= sectorCount) {
+            throw new IllegalArgumentException("Sector "
+                    + dump.keyAt(dump.size() - 1) + " is not part of a card "
+                    + "with " + sectorCount + " sectors.");
+        }
+        for (int sector = 0; sector < sectorCount; sector++) {
+            String[] blocks = dump.get(sector);
+            int blockCount = getBlockCount(sector);
+            for (int j = 0; j < blockCount; j++) {
+                String block = (blocks != null && j < blocks.length)
+                        ? blocks[j] : null;
+                for (int k = 0; k < 16; k++) {
+                    if (mPos == mBuffer.length) {
+                        flushBuffer();
+                    }
+                    mBuffer[mPos++] = (byte) hexByte(block, k);
+                }
+            }
+        }
+    }
+
+    private static int getBlockCount(int sector) {
+        return sector < 32 ? 4 : 16;
+    }
+
+    /**
+     * Write zeros for the given sectors (unknown sectors of an .mfd image).
+     */
+    private void writeMfdPadding(int fromSector, int toSector)
+            throws IOException {
+        for (int sector = fromSector; sector < toSector; sector++) {
+            int bytes = getBlockCount(sector) * 16;
+            for (int k = 0; k < bytes; k++) {
+                if (mPos == mBuffer.length) {
+                    flushBuffer();
+                }
+                mBuffer[mPos++] = 0;
+            }
+        }
+    }
+
+    /**
+     * Decode one byte of a hex block. Unknown parts (e.g.
+     * {@link MCReader#NO_DATA} or {@link MCReader#NO_KEY}) are 0.
+     */
+    private static int hexByte(String block, int index) {
+        if (block == null || block.length() < (index + 1) * 2) {
+            return 0;
+        }
+        int high = Character.digit(block.charAt(index * 2), 16);
+        int low = Character.digit(block.charAt(index * 2 + 1), 16);
+        if (high < 0 || low < 0) {
+            return 0;
+        }
+        return (high << 4) | low;
+    }
+
+    /**
+     * Write one sector from raw blocks, encoding the hex directly into the
+     * output buffer (only {@link #FORMAT_TEXT} and {@link #FORMAT_MFD}).
+     * For {@link #FORMAT_MFD}, sectors must be written in ascending order.
+     * Skipped sectors are written as zeros and the image has to be finished
+     * with {@link #endRawCard(int)}.
+     *
+     * @param sector Sector index.
+     * @param blocks Raw blocks (16 bytes each, "null" if unknown).
+     * @throws IOException Error while writing.
+     * @throws IllegalArgumentException The sector was already written
+     *                                  ({@link #FORMAT_MFD}).
+     */
+    public void writeRawSector(int sector, byte[][] blocks)
+            throws IOException {
+        if (mFormat == FORMAT_MFD) {
+            if (sector < mNextMfdSector) {
+                throw new IllegalArgumentException("Sector " + sector
+                        + " is not in ascending order.");
+            }
+            writeMfdPadding(mNextMfdSector, sector);
+            int blockCount = getBlockCount(sector);
+            for (int j = 0; j < blockCount; j++) {
+                byte[] block = j < blocks.length ? blocks[j] : null;
+                for (int k = 0; k < 16; k++) {
+                    if (mPos == mBuffer.length) {
+                        flushBuffer();
+                    }
+                    mBuffer[mPos++] = block != null ? block[k] : 0;
+                }
+            }
+            mNextMfdSector = sector + 1;
+        } else if (mFormat == FORMAT_TEXT) {
+            writeAscii("+Sector: ");
+            writeDecimal(sector);
+            writeByte('\n');
+            for (byte[] block : blocks) {
+                if (block != null) {
+                    writeHex(block);
+                } else {
+                    writeAscii(MCReader.NO_DATA);
+                }
+                writeByte('\n');
+            }
+        } else {
+            throw new IllegalStateException(
+                    "Raw sectors are only supported for text and .mfd.");
+        }
+        mFirstEntry = false;
+    }
+
+    /**
+     * Finish a card written with {@link #writeRawSector(int, byte[][])}.
+     * For {@link #FORMAT_MFD}, the remaining sectors are written as zeros,
+     * so the image has the full size of the card.
+     *
+     * @param sectorCount Number of sectors of the card.
+     * @throws IOException Error while writing.
+     */
+    public void endRawCard(int sectorCount) throws IOException {
+        if (mFormat == FORMAT_MFD) {
+            writeMfdPadding(mNextMfdSector, sectorCount);
+        }
+        mNextMfdSector = 0;
+    }
+
+    /**
+     * Write all history records with an ID greater than the given one
+     * (only {@link #FORMAT_JSON} and {@link #FORMAT_CSV}).
+     *
+     * @param history The scan history.
+     * @param afterId Only records after this ID will be written
+     *                (0 for all records).
+     * @return ID of the last written record (the new checkpoint) or
+     * afterId if there were no new records.
+     * @throws IOException Error while writing.
+     * @see #writeNewHistory(ScanHistory)
+     */
+    public long writeHistory(ScanHistory history, long afterId)
+            throws IOException {
+        if (mFormat != FORMAT_JSON && mFormat != FORMAT_CSV) {
+            throw new IllegalStateException(
+                    "History is only supported for JSON and CSV.");
+        }
+        long lastId = afterId;
+        mHistoryCount = 0;
+        try (Cursor cursor = history.queryAfterId(afterId)) {
+            if (mFormat == FORMAT_CSV && mFirstEntry) {
+                for (int i = 0; i < ScanHistory.COLUMNS.length; i++) {
+                    if (i > 0) {
+                        writeByte(',');
+                    }
+                    writeAscii(ScanHistory.COLUMNS[i]);
+                }
+                writeByte('\n');
+            }
+            while (cursor.moveToNext()) {
+                lastId = cursor.getLong(0);
+                if (mFormat == FORMAT_CSV) {
+                    writeHistoryCsv(cursor);
+                } else {
+                    writeHistoryJson(cursor);
+                }
+                mFirstEntry = false;
+                mHistoryCount++;
+            }
+        }
+        return lastId;
+    }
+
+    /**
+     * Write all history records which were not exported yet (see
+     * {@link #PREF_HISTORY_CHECKPOINT}). The new checkpoint is only stored
+     * by {@link #commitHistoryCheckpoint()}, so the records will be
+     * exported again if the export fails later on.
+     *
+     * @param history The scan history.
+     * @return Number of exported records.
+     * @throws IOException Error while writing.
+     */
+    public int writeNewHistory(ScanHistory history) throws IOException {
+        long checkpoint = Common.getPreferences().getLong(
+                PREF_HISTORY_CHECKPOINT, 0);
+        long lastId = writeHistory(history, checkpoint);
+        if (lastId != checkpoint) {
+            mPendingCheckpoint = lastId;
+        }
+        return mHistoryCount;
+    }
+
+    /**
+     * Store the checkpoint of {@link #writeNewHistory(ScanHistory)} in the
+     * preferences ({@link #PREF_HISTORY_CHECKPOINT}). Call this after
+     * {@link #end()} and {@link #close()} were successful.
+     *
+     * @throws IllegalStateException {@link #end()} was not called or
+     *                               {@link #close()} failed.
+     */
+    public void commitHistoryCheckpoint() {
+        if (!mEnded) {
+            throw new IllegalStateException("Export was not finished.");
+        }
+        if (mPendingCheckpoint != -1) {
+            Common.getPreferences().edit()
+                    .putLong(PREF_HISTORY_CHECKPOINT, mPendingCheckpoint)
+                    .apply();
+            mPendingCheckpoint = -1;
+        }
+    }
+
+    private void writeHistoryCsv(Cursor cursor) throws IOException {
+        // _id, uid, timestamp, sectors_read, keys_used, duration, outcome
+        writeDecimal(cursor.getLong(0));
+        writeByte(',');
+        writeAscii(cursor.getString(1));
+        writeByte(',');
+        writeDecimal(cursor.getLong(2));
+        writeByte(',');
+        writeDecimal(cursor.getLong(3));
+        writeByte(',');
+        if (!cursor.isNull(4)) {
+            // Keys are comma separated.
+            writeByte('"');
+            writeAscii(cursor.getString(4));
+            writeByte('"');
+        }
+        writeByte(',');
+        writeDecimal(cursor.getLong(5));
+        writeByte(',');
+        writeDecimal(cursor.getLong(6));
+        writeByte('\n');
+    }
+
+    private void writeHistoryJson(Cursor cursor) throws IOException {
+        writeAscii(mFirstEntry ? "\n{" : ",\n{");
+        for (int i = 0; i < ScanHistory.COLUMNS.length; i++) {
+            if (i > 0) {
+                writeByte(',');
+            }
+            writeByte('"');
+            writeAscii(ScanHistory.COLUMNS[i]);
+            writeAscii("\":");
+            if (i == 1 || i == 4) {
+                writeJsonString(cursor.isNull(i) ? null : cursor.getString(i));
+            } else {
+                writeDecimal(cursor.getLong(i));
+            }
+        }
+        writeByte('}');
+    }
+
+    private void writeByte(int b) throws IOException {
+        if (mPos == mBuffer.length) {
+            flushBuffer();
+        }
+        mBuffer[mPos++] = (byte) b;
+    }
+
+    /**
+     * Write a string which only contains ASCII characters (hex, numbers,
+     * format syntax) without encoding it first.
+     */
+    private void writeAscii(String s) throws IOException {
+        int len = s.length();
+        for (int i = 0; i < len; i++) {
+            if (mPos == mBuffer.length) {
+                flushBuffer();
+            }
+            mBuffer[mPos++] = (byte) s.charAt(i);
+        }
+    }
+
+    private void writeHex(byte[] bytes) throws IOException {
+        for (byte b : bytes) {
+            if (mPos + 2 > mBuffer.length) {
+                flushBuffer();
+            }
+            mBuffer[mPos++] = HEX[(b >>> 4) & 0x0F];
+            mBuffer[mPos++] = HEX[b & 0x0F];
+        }
+    }
+
+    private void writeDecimal(long value) throws IOException {
+        if (value == Long.MIN_VALUE) {
+            writeAscii(Long.toString(value));
+            return;
+        }
+        if (value < 0) {
+            writeByte('-');
+            value = -value;
+        }
+        int i = mDigits.length;
+        do {
+            mDigits[--i] = (byte) ('0' + (value % 10));
+            value /= 10;
+        } while (value != 0);
+        while (i < mDigits.length) {
+            writeByte(mDigits[i++]);
+        }
+    }
+
+    private void writeJsonString(String s) throws IOException {
+        if (s == null) {
+            writeAscii("null");
+            return;
+        }
+        writeByte('"');
+        int len = s.length();
+        for (int i = 0; i < len; i++) {
+            char c = s.charAt(i);
+            if (c == '"' || c == '\\') {
+                writeByte('\\');
+                writeByte(c);
+            } else if (c < 0x20 || c > 0x7E) {
+                writeAscii("\\u");
+                writeByte(HEX[(c >>> 12) & 0x0F]);
+                writeByte(HEX[(c >>> 8) & 0x0F]);
+                writeByte(HEX[(c >>> 4) & 0x0F]);
+                writeByte(HEX[c & 0x0F]);
+            } else {
+                writeByte(c);
+            }
+        }
+        writeByte('"');
+    }
+
+    private void flushBuffer() throws IOException {
+        if (mPos == 0) {
+            return;
+        }
+        if (mOut != null) {
+            mOut.write(mBuffer, 0, mPos);
+        } else {
+            mByteBuffer.clear();
+            mByteBuffer.limit(mPos);
+            while (mByteBuffer.hasRemaining()) {
+                mChannel.write(mByteBuffer);
+            }
+        }
+        mPos = 0;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        flushBuffer();
+        if (mOut != null) {
+            mOut.flush();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        // Stays false if anything below fails.
+        boolean ended = mEnded;
+        mEnded = false;
+        try {
+            flushBuffer();
+        } finally {
+            if (mOut != null) {
+                mOut.close();
+            } else {
+                mChannel.close();
+            }
+        }
+        mEnded = ended;
+    }
+}
@@ -3,20 +3,173 @@ package com.example.nfccard;
 import android.nfc.Tag;
 import android.nfc.TagLostException;
 import android.nfc.tech.MifareClassic;
+import android.nfc.tech.NfcA;
 import android.preference.Preference;
+import android.text.TextUtils;
 import android.util.Log;
 import android.util.SparseArray;
 
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
 
 public class MCReader {
 
-    private final MifareClassic mMFC;
+    /**
+     * Raw data of one sector, handed from the I/O stage to the decoder stage
+     * of {@link #readAsMuchAsPossible(SparseArray, CancellationToken)}.
+     */
+    private static final class RawSector {
+        final int mSector;
+        final byte[][] mKeys;
+        byte[][] mBlocksA;
+        byte[][] mBlocksB;
+
+        RawSector(int sector, byte[][] keys) {
+            mSector = sector;
+            mKeys = keys;
+        }
+    }
+
+    /**
+     * {@link MifareClassicTech} backed by {@link MifareClassic}.
+     */
+    private static final class AndroidMifareClassic
+            implements MifareClassicTech {
+        private final MifareClassic mMFC;
+
+        AndroidMifareClassic(MifareClassic mfc) {
+            mMFC = mfc;
+        }
+
+        @Override
+        public void connect() throws IOException {
+            mMFC.connect();
+        }
+
+        @Override
+        public void close() throws IOException {
+            mMFC.close();
+        }
+
+        @Override
+        public boolean isConnected() {
+            return mMFC.isConnected();
+        }
+
+        @Override
+        public boolean authenticateSectorWithKeyA(int sectorIndex, byte[] key)
+                throws IOException {
+            return mMFC.authenticateSectorWithKeyA(sectorIndex, key);
+        }
+
+        @Override
+        public boolean authenticateSectorWithKeyB(int sectorIndex, byte[] key)
+                throws IOException {
+            return mMFC.authenticateSectorWithKeyB(sectorIndex, key);
+        }
+
+        @Override
+        public byte[] readBlock(int blockIndex) throws IOException {
+            return mMFC.readBlock(blockIndex);
+        }
+
+        @Override
+        public void writeBlock(int blockIndex, byte[] data)
+                throws IOException {
+            mMFC.writeBlock(blockIndex, data);
+        }
+
+        @Override
+        public int getSize() {
+            return mMFC.getSize();
+        }
+
+        @Override
+        public int getSectorCount() {
+            return mMFC.getSectorCount();
+        }
+
+        @Override
+        public int getBlockCountInSector(int sectorIndex) {
+            return mMFC.getBlockCountInSector(sectorIndex);
+        }
+
+        @Override
+        public int sectorToBlock(int sectorIndex) {
+            return mMFC.sectorToBlock(sectorIndex);
+        }
+    }
+
+    private final MifareClassicTech mMFC;
+    private final byte[] mUID;
+    private final short mSak;
+    private final byte[] mAtqa;
     public static final String NO_KEY = "------------";
     public static final String NO_DATA = "--------------------------------";
+    /**
+     * Maximum time in milliseconds {@link #connect()} waits for the tag.
+     */
+    public static final int CONNECT_TIMEOUT = 500;
+    /**
+     * Interval in milliseconds in which {@link #connect(CancellationToken)}
+     * checks the token while waiting for the tag.
+     */
+    private static final int CONNECT_POLL_INTERVAL = 50;
+    /**
+     * Number of raw sectors the I/O stage may be ahead of the decoder stage.
+     */
+    private static final int PIPELINE_DEPTH = 8;
+    /**
+     * Time the I/O stage waits if the ring is full (the decoder stage
+     * wakes it up earlier once there is space).
+     */
+    private static final long PIPELINE_PARK_NANOS = 1000000;
+    /**
+     * Sectors decoded by {@link #warmUp()}: as many as the first tap of a
+     * 1K card with key A and key B.
+     */
+    private static final int WARM_UP_ITERATIONS = 32;
+    /**
+     * Threads of the decoder stage (see {@link #createWorkers(String)}).
+     */
+    private static final ThreadPoolExecutor DECODE_EXECUTOR =
+            createWorkers("MCReader-decoder");
+    /**
+     * Threads for the (blocking) connect of {@link #connect(
+     * CancellationToken)} (see {@link #createWorkers(String)}).
+     */
+    private static final ThreadPoolExecutor CONNECT_EXECUTOR =
+            createWorkers("MCReader-connect");
+
+    /**
+     * Create a pool with one thread that never stops, so taps do not have
+     * to start a new thread (see {@link #startWorkers()}). Only if tasks
+     * overlap (e.g. a connect which still blocks after its timeout),
+     * additional threads will be started. They stop after 60s idle.
+     *
+     * @param name Name of the threads.
+     * @return The pool.
+     */
+    private static ThreadPoolExecutor createWorkers(final String name) {
+        return new ThreadPoolExecutor(1, Integer.MAX_VALUE,
+                60, TimeUnit.SECONDS, new SynchronousQueue<>(), r -> {
+            Thread t = new Thread(r, name);
+            t.setDaemon(true);
+            return t;
+        });
+    }
 
     private MCReader(Tag tag) {
         MifareClassic tmpMFC;
@@ -27,7 +180,43 @@ public class MCReader {
                     + "provided tag (even after patching it).");
             throw e;
         }
-        mMFC = tmpMFC;
+        mMFC = tmpMFC != null ? new AndroidMifareClassic(tmpMFC) : null;
+        mUID = tag.getId();
+        NfcA nfcA = NfcA.get(tag);
+        if (nfcA != null) {
+            mSak = nfcA.getSak();
+            mAtqa = nfcA.getAtqa();
+        } else {
+            mSak = -1;
+            mAtqa = null;
+        }
+    }
+
+    /**
+     * Create a reader for a tag which is not backed by {@link MifareClassic}
+     * (e.g. an emulated card in tests).
+     *
+     * @param tech The MIFARE Classic operations of the tag.
+     * @param uid  The UID of the tag.
+     */
+    MCReader(MifareClassicTech tech, byte[] uid) {
+        this(tech, uid, (short) -1, null);
+    }
+
+    /**
+     * Create a reader for a tag which is not backed by {@link MifareClassic}
+     * (e.g. an emulated card in tests).
+     *
+     * @param tech The MIFARE Classic operations of the tag.
+     * @param uid  The UID of the tag.
+     * @param sak  The SAK of the tag (-1 if unknown).
+     * @param atqa The ATQA of the tag ("null" if unknown).
+     */
+    MCReader(MifareClassicTech tech, byte[] uid, short sak, byte[] atqa) {
+        mMFC = tech;
+        mUID = uid;
+        mSak = sak;
+        mAtqa = atqa;
     }
 
     /**
@@ -70,37 +259,86 @@ public class MCReader {
      * then connecting will be aborted.
      *
      * @throws Exception Something went wrong while connecting to the tag.
+     * @see #connect(CancellationToken)
      */
     public void connect() throws Exception {
+        connect(CancellationToken.NONE);
+    }
+
+    /**
+     * Connect the reader to the tag. If the reader is already connected the
+     * "connect" will be skipped. If "connect" will block for more than
+     * {@link #CONNECT_TIMEOUT} ms (or the time left until the deadline of the
+     * token, if that is shorter) or the token gets cancelled in the meantime,
+     * connecting will be aborted and the tag will be closed (which also
+     * releases the blocked worker thread).
+     *
+     * @param token Token to abort connecting.
+     * @throws Exception Something went wrong while connecting to the tag
+     *                   or connecting was cancelled.
+     */
+    public void connect(CancellationToken token) throws Exception {
         final AtomicBoolean error = new AtomicBoolean(false);
 
         // Do not connect if already connected.
         if (isConnected()) {
             return;
         }
+        if (token.isCancelled()) {
+            throw new Exception("Connecting to tag was cancelled.");
+        }
 
         // Connect in a worker thread. (connect() might be blocking).
-        Thread t = new Thread(() -> {
+        Future<?> connecting = CONNECT_EXECUTOR.submit(() -> {
             try {
                 mMFC.connect();
             } catch (IOException | IllegalStateException ex) {
                 error.set(true);
             }
         });
-        t.start();
 
-        // Wait for the connection (max 500millis).
+        // Wait for the connection (max 500millis, but not beyond the
+        // deadline of the token, or until cancelled).
+        long timeout = Math.min(CONNECT_TIMEOUT, token.remainingMillis());
+        long waitUntil = System.nanoTime() + timeout * 1000000L;
         try {
-            t.join(500);
-        } catch (InterruptedException ex) {
+            while (!connecting.isDone() && !token.isCancelled()) {
+                long left = (waitUntil - System.nanoTime()) / 1000000L;
+                if (left <= 0) {
+                    break;
+                }
+                try {
+                    connecting.get(Math.min(left, CONNECT_POLL_INTERVAL),
+                            TimeUnit.MILLISECONDS);
+                } catch (TimeoutException ex) {
+                    // Check the token and the timeout.
+                }
+            }
+        } catch (InterruptedException | ExecutionException ex) {
+            error.set(true);
+        }
+
+        // Still blocking (timeout) or no longer wanted (cancelled).
+        // Closing the tag makes the worker thread return.
+        if (!connecting.isDone() || token.isCancelled()) {
+            if (token.isCancelled()) {
+                DiagLog.log(DiagLog.EVENT_READ_CANCELLED, -1, -1, 0);
+            } else {
+                DiagLog.log(DiagLog.EVENT_CONNECT_TIMEOUT, -1, -1,
+                        (int) timeout);
+            }
             error.set(true);
+            close();
         }
 
         // If there was an error log it and throw an exception.
         if (error.get()) {
-            Log.d("MCReader", "Error while connecting to tag.");
+            if (!token.isCancelled()) {
+                DiagLog.error(DiagLog.EVENT_CONNECT_ERROR, -1, -1, 0);
+            }
             throw new Exception("Error while connecting to tag.");
         }
+        DiagLog.log(DiagLog.EVENT_CONNECT, -1, -1, 0);
     }
 
     /**
@@ -110,7 +348,7 @@ public class MCReader {
         try {
             mMFC.close();
         } catch (IOException e) {
-            Log.d("MCReader", "Error on closing tag.");
+            DiagLog.log(DiagLog.EVENT_CLOSE_ERROR, -1, -1, 0);
         }
     }
 
@@ -130,42 +368,205 @@ public class MCReader {
      * (and therefore no sector is read), an empty set (SparseArray.size() == 0)
      * will be returned.
      * // @see #buildNextKeyMapPart()
+     * @see #readAsMuchAsPossible(SparseArray, CancellationToken)
      */
     public SparseArray<String[]> readAsMuchAsPossible(
             SparseArray<byte[][]> keyMap) {
-        SparseArray<String[]> resultSparseArray;
-        Log.d("MIFARE READASMUCH", "READ");
+        return readAsMuchAsPossible(keyMap, CancellationToken.NONE);
+    }
+
+    /**
+     * Read as much as possible from the tag with the given key information.
+     * The token is checked between all RF operations. If it gets cancelled
+     * (or its deadline passes), reading stops, the tag will be closed and
+     * the sectors read so far will be returned.
+     *
+     * @param keyMap Keys (A and B) mapped to a sector.
+     * @param token  Token to abort reading.
+     * @return Same as {@link #readAsMuchAsPossible(SparseArray)}. If reading
+     * was cancelled, the result contains only the sectors read before
+     * the cancellation.
+     */
+    public SparseArray<String[]> readAsMuchAsPossible(
+            SparseArray<byte[][]> keyMap, CancellationToken token) {
         if (keyMap != null && keyMap.size() > 0) {
-            Log.d("MIFARE READASMUCH", "inside READASMUCH");
-            resultSparseArray = new SparseArray<>(keyMap.size());
-            // For all entries in map do:
-            for (int i = 0; i < keyMap.size(); i++) {
-                String[][] results = new String[2][];
-                try {
-                    if (keyMap.valueAt(i)[0] != null) {
+            DiagLog.log(DiagLog.EVENT_READ_START, -1, -1, keyMap.size());
+            // Two stage pipeline: This thread only does the RF I/O
+            // (authenticate, readBlock) and hands the raw sectors over to
+            // the decoder stage, which converts, merges and validates them
+            // while the next sector is read.
+            final SparseArray<String[]> resultSparseArray =
+                    new SparseArray<>(keyMap.size());
+            final SpscRing<RawSector> ring = new SpscRing<>(PIPELINE_DEPTH);
+            final AtomicBoolean producerDone = new AtomicBoolean(false);
+            final Thread producer = Thread.currentThread();
+            final AtomicReference<Thread> consumer = new AtomicReference<>();
+            final Set<String> keysUsed = new LinkedHashSet<>();
+            long start = System.nanoTime();
+            long timestamp = System.currentTimeMillis();
+            Future<?> decoder = DECODE_EXECUTOR.submit(() -> decodeSectors(
+                    ring, producerDone, producer, consumer,
+                    resultSparseArray, keysUsed));
+            boolean tagLost = false;
+            try {
+                // For all entries in map do:
+                for (int i = 0; i < keyMap.size(); i++) {
+                    if (token.isCancelled()) {
+                        break;
+                    }
+                    byte[][] keys = keyMap.valueAt(i);
+                    RawSector raw = new RawSector(keyMap.keyAt(i), keys);
+                    if (keys[0] != null) {
                         // Read with key A.
-                        results[0] = readSector(
-                                keyMap.keyAt(i), keyMap.valueAt(i)[0], false);
+                        raw.mBlocksA = readSectorRaw(
+                                raw.mSector, keys[0], false, token);
                     }
-                    if (keyMap.valueAt(i)[1] != null) {
+                    if (keys[1] != null && !token.isCancelled()) {
                         // Read with key B.
-                        results[1] = readSector(
-                                keyMap.keyAt(i), keyMap.valueAt(i)[1], true);
+                        raw.mBlocksB = readSectorRaw(
+                                raw.mSector, keys[1], true, token);
+                    }
+                    if (raw.mBlocksA != null || raw.mBlocksB != null) {
+                        while (!ring.offer(raw) && !decoder.isDone()) {
+                            // Decoder is behind. Should rarely happen.
+                            LockSupport.parkNanos(ring, PIPELINE_PARK_NANOS);
+                        }
+                        LockSupport.unpark(consumer.get());
                     }
-                } catch (TagLostException e) {
-                    return null;
-                }
-                // Merge results.
-                if (results[0] != null || results[1] != null) {
-                    resultSparseArray.put(keyMap.keyAt(i), mergeSectorData(
-                            results[0], results[1]));
                 }
+            } catch (TagLostException e) {
+                tagLost = true;
+            } finally {
+                producerDone.set(true);
+                LockSupport.unpark(consumer.get());
             }
+
+            // Wait for the decoder to process the remaining sectors.
+            try {
+                decoder.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                recordScan(start, timestamp, 0, null,
+                        ScanRecord.OUTCOME_ERROR);
+                return null;
+            } catch (ExecutionException e) {
+                DiagLog.error(DiagLog.EVENT_DECODE_ERROR, -1, -1, 0);
+                recordScan(start, timestamp, 0, null,
+                        ScanRecord.OUTCOME_ERROR);
+                return null;
+            }
+            if (tagLost) {
+                DiagLog.error(DiagLog.EVENT_TAG_LOST, -1, -1,
+                        resultSparseArray.size());
+                recordScan(start, timestamp, resultSparseArray.size(),
+                        keysUsed, ScanRecord.OUTCOME_TAG_LOST);
+                return null;
+            }
+            int outcome;
+            if (token.isCancelled()) {
+                // Free the tag for the next read.
+                DiagLog.log(DiagLog.EVENT_READ_CANCELLED, -1, -1,
+                        resultSparseArray.size());
+                close();
+                outcome = ScanRecord.OUTCOME_CANCELLED;
+            } else if (resultSparseArray.size() == 0) {
+                outcome = ScanRecord.OUTCOME_ERROR;
+            } else if (resultSparseArray.size() < keyMap.size()) {
+                outcome = ScanRecord.OUTCOME_PARTIAL;
+            } else {
+                outcome = ScanRecord.OUTCOME_OK;
+            }
+            DiagLog.log(DiagLog.EVENT_READ_DONE, -1, -1, outcome);
+            recordScan(start, timestamp, resultSparseArray.size(),
+                    keysUsed, outcome);
             return resultSparseArray;
         }
         return null;
     }
 
+    /**
+     * Decoder stage of {@link #readAsMuchAsPossible(SparseArray,
+     * CancellationToken)}. Take raw sectors from the ring, decode them
+     * (see {@link #decodeSector(byte[][], byte[], boolean)}), merge the
+     * results of key A and key B and put them into the result.
+     * Returns once the producer is done and the ring is empty.
+     * While the ring is empty, this stage is parked until the I/O stage
+     * wakes it up (after adding a sector or when it is done).
+     *
+     * @param ring         Ring with the raw sectors.
+     * @param producerDone Set by the I/O stage once it is done.
+     * @param producer     Thread of the I/O stage. Woken up if the
+     *                     ring was full.
+     * @param consumer     Set to the thread of this stage, so the I/O stage
+     *                     can wake it up.
+     * @param result       Merged sectors. Only written by this stage.
+     * @param keysUsed     Keys (hex) which were valid for reading.
+     *                     Only written by this stage.
+     */
+    private void decodeSectors(SpscRing<RawSector> ring,
+                               AtomicBoolean producerDone, Thread producer,
+                               AtomicReference<Thread> consumer,
+                               SparseArray<String[]> result,
+                               Set<String> keysUsed) {
+        consumer.set(Thread.currentThread());
+        while (true) {
+            RawSector raw = ring.poll();
+            if (raw == null) {
+                if (producerDone.get() && ring.isEmpty()) {
+                    break;
+                }
+                // Next sector is still on its way. An unpark between the
+                // check above and park() is not lost (park returns at once).
+                LockSupport.park(ring);
+                continue;
+            }
+            if (ring.size() == ring.capacity() - 1) {
+                // The ring was full. The I/O stage might be waiting.
+                LockSupport.unpark(producer);
+            }
+            String[] resultA = decodeSector(raw.mBlocksA, raw.mKeys[0], false);
+            String[] resultB = decodeSector(raw.mBlocksB, raw.mKeys[1], true);
+            if (resultA != null) {
+                keysUsed.add(Common.bytes2Hex(raw.mKeys[0]));
+            }
+            if (resultB != null) {
+                keysUsed.add(Common.bytes2Hex(raw.mKeys[1]));
+            }
+            // Merge results.
+            if (resultA != null || resultB != null) {
+                result.put(raw.mSector, mergeSectorData(resultA, resultB));
+            }
+        }
+    }
+
+    /**
+     * Add a read operation to the scan history (see {@link ScanHistory}).
+     * This does not block. Also used for taps which never reach
+     * {@link #readAsMuchAsPossible(SparseArray, CancellationToken)} (see
+     * {@link TapReader}).
+     *
+     * @param start       Start of the operation ({@link System#nanoTime()}).
+     * @param timestamp   Start of the operation
+     *                    ({@link System#currentTimeMillis()}).
+     * @param sectorsRead Number of sectors read.
+     * @param keysUsed    Keys (hex) which were valid for reading or "null".
+     * @param outcome     One of the {@link ScanRecord} OUTCOME constants.
+     */
+    void recordScan(long start, long timestamp, int sectorsRead,
+                            Set<String> keysUsed, int outcome) {
+        ScanHistory history = Common.getScanHistory();
+        if (history == null) {
+            return;
+        }
+        String keys = null;
+        if (keysUsed != null && !keysUsed.isEmpty()) {
+            keys = TextUtils.join(",", keysUsed);
+        }
+        history.record(new ScanRecord(Common.bytes2Hex(mUID), timestamp,
+                sectorsRead, keys, (System.nanoTime() - start) / 1000000,
+                outcome));
+    }
+
     /**
      * Merge the result of two {@link #readSector(int, byte[], boolean)}
      * calls on the same sector (with different keys or authentication methods).
@@ -182,7 +583,7 @@ public class MCReader {
      * sectors. If a block is {@link #NO_DATA} it
      * means that none of the given sectors contained data from this block.
      * @see #readSector(int, byte[], boolean)
-     * @see #authenticate(int, byte[], boolean)
+     * @see #authenticate(int, byte[], boolean, CancellationToken)
      */
     public String[] mergeSectorData(String[] firstResult,
                                     String[] secondResult) {
@@ -233,23 +634,82 @@ public class MCReader {
         return ret;
     }
 
+    /**
+     * Read a sector with the given key.
+     *
+     * @param sectorIndex Index of the sector to read.
+     * @param key         Key for authentication.
+     * @param useAsKeyB   If true, key will be treated as key B.
+     * @return Array of blocks (index 0-3 or 0-15), with the key merged into
+     * the sector trailer. If a block could not be read it is
+     * {@link #NO_DATA}. "null" if authentication failed or no data could
+     * be read at all.
+     * @throws TagLostException Tag was removed during reading.
+     * @see #readSector(int, byte[], boolean, CancellationToken)
+     */
     public String[] readSector(int sectorIndex, byte[] key,
                                boolean useAsKeyB) throws TagLostException {
-        boolean auth = authenticate(sectorIndex, key, useAsKeyB);
-        String[] ret = null;
+        return readSector(sectorIndex, key, useAsKeyB,
+                CancellationToken.NONE);
+    }
+
+    /**
+     * Read a sector with the given key. The token is checked before every
+     * block. A sector which could not be read completely because of a
+     * cancellation is dropped.
+     *
+     * @param sectorIndex Index of the sector to read.
+     * @param key         Key for authentication.
+     * @param useAsKeyB   If true, key will be treated as key B.
+     * @param token       Token to abort reading.
+     * @return See {@link #readSector(int, byte[], boolean)}. "null" if
+     * reading was cancelled before all blocks were read.
+     * @throws TagLostException Tag was removed during reading.
+     */
+    public String[] readSector(int sectorIndex, byte[] key,
+                               boolean useAsKeyB, CancellationToken token)
+            throws TagLostException {
+        return decodeSector(readSectorRaw(sectorIndex, key, useAsKeyB, token),
+                key, useAsKeyB);
+    }
+
+    /**
+     * Read the raw blocks of a sector (I/O only, no decoding).
+     * The token is checked before every block.
+     *
+     * @param sectorIndex Index of the sector to read.
+     * @param key         Key for authentication.
+     * @param useAsKeyB   If true, key will be treated as key B.
+     * @param token       Token to abort reading.
+     * @return Raw blocks (16 bytes each). A block is "null" if it
+     * could not be read. "null" if authentication failed or reading was
+     * cancelled before all blocks were read.
+     * @throws TagLostException Tag was removed during reading.
+     * @see #decodeSector(byte[][], byte[], boolean)
+     */
+    private byte[][] readSectorRaw(int sectorIndex, byte[] key,
+                                   boolean useAsKeyB, CancellationToken token)
+            throws TagLostException {
+        boolean auth = authenticate(sectorIndex, key, useAsKeyB, token);
+        byte[][] ret = null;
         // Read sector.
         if (auth) {
             // Read all blocks.
-            ArrayList<String> blocks = new ArrayList<>();
             int firstBlock = mMFC.sectorToBlock(sectorIndex);
-            int lastBlock = firstBlock + 4;
+            int blockCount = 4;
             if (mMFC.getSize() == MifareClassic.SIZE_4K
                     && sectorIndex > 31) {
-                lastBlock = firstBlock + 16;
+                blockCount = 16;
             }
-            for (int i = firstBlock; i < lastBlock; i++) {
+            ret = new byte[blockCount][];
+            for (int i = 0; i < blockCount; i++) {
+                if (token.isCancelled()) {
+                    // Do not return a sector which was cut short. It would
+                    // look like a sector with unreadable blocks.
+                    return null;
+                }
                 try {
-                    byte[] blockBytes = mMFC.readBlock(i);
+                    byte[] blockBytes = mMFC.readBlock(firstBlock + i);
                     // mMFC.readBlock(i) must return 16 bytes or throw an error.
                     // At least this is what the documentation says.
                     // On Samsung's Galaxy S5 and Sony's Xperia Z2 however, it
@@ -262,65 +722,292 @@ public class MCReader {
                     if (blockBytes.length > 16) {
                         blockBytes = Arrays.copyOf(blockBytes, 16);
                     }
-
-                    blocks.add(Common.bytes2Hex(blockBytes));
+                    ret[i] = blockBytes;
+                    DiagLog.log(DiagLog.EVENT_READ_BLOCK, sectorIndex,
+                            firstBlock + i, 0);
                 } catch (TagLostException e) {
                     throw e;
                 } catch (IOException e) {
                     // Could not read block.
                     // (Maybe due to key/authentication method.)
-                    Log.d("MCReader", "(Recoverable) Error while reading block "
-                            + i + " from tag.");
-                    blocks.add(NO_DATA);
+                    DiagLog.log(DiagLog.EVENT_READ_BLOCK_ERROR,
+                            sectorIndex, firstBlock + i, 0);
                     if (!mMFC.isConnected()) {
                         throw new TagLostException(
                                 "Tag removed during readSector(...)");
                     }
                     // After an error, a re-authentication is needed.
-                    authenticate(sectorIndex, key, useAsKeyB);
+                    authenticate(sectorIndex, key, useAsKeyB, token);
                 }
             }
-            ret = blocks.toArray(new String[0]);
-            int last = ret.length - 1;
-
-            // Validate if it was possible to read any data.
-            boolean noData = true;
-            for (String s : ret) {
-                if (!s.equals(NO_DATA)) {
-                    noData = false;
-                    break;
-                }
+        }
+        return ret;
+    }
+
+    /**
+     * Decode the raw blocks of a sector (CPU only, no I/O). The blocks will
+     * be converted to hex and the key will be merged into the sector trailer.
+     *
+     * @param rawBlocks Result of
+     *                  {@link #readSectorRaw(int, byte[], boolean,
+     *                  CancellationToken)}.
+     * @param key       Key which was used for reading.
+     * @param useAsKeyB If true, key was used as key B.
+     * @return See {@link #readSector(int, byte[], boolean)}.
+     */
+    private static String[] decodeSector(byte[][] rawBlocks, byte[] key,
+                                         boolean useAsKeyB) {
+        if (rawBlocks == null) {
+            return null;
+        }
+        String[] ret = new String[rawBlocks.length];
+        int last = ret.length - 1;
+
+        // Validate if it was possible to read any data.
+        boolean noData = true;
+        for (int i = 0; i < rawBlocks.length; i++) {
+            if (rawBlocks[i] != null) {
+                ret[i] = Common.bytes2Hex(rawBlocks[i]);
+                noData = false;
+            } else {
+                ret[i] = NO_DATA;
             }
-            if (noData) {
-                // Was is possible to read any data (especially with key B)?
-                // If Key B may be read in the corresponding Sector Trailer,
-                // it cannot serve for authentication (according to NXP).
-                // What they mean is that you can authenticate successfully,
-                // but can not read data. In this case the
-                // readBlock() result is 0 for each block.
-                // Also, a tag might be bricked in a way that the authentication
-                // works, but reading data does not.
-                ret = null;
+        }
+        if (noData) {
+            // Was is possible to read any data (especially with key B)?
+            // If Key B may be read in the corresponding Sector Trailer,
+            // it cannot serve for authentication (according to NXP).
+            // What they mean is that you can authenticate successfully,
+            // but can not read data. In this case the
+            // readBlock() result is 0 for each block.
+            // Also, a tag might be bricked in a way that the authentication
+            // works, but reading data does not.
+            return null;
+        }
+        // Merge key in last block (sector trailer).
+        if (!useAsKeyB) {
+            if (isKeyBReadable(Common.hex2Bytes(
+                    ret[last].substring(12, 20)))) {
+                ret[last] = Common.bytes2Hex(key)
+                        + ret[last].substring(12, 32);
             } else {
-                // Merge key in last block (sector trailer).
-                if (!useAsKeyB) {
-                    if (isKeyBReadable(Common.hex2Bytes(
-                            ret[last].substring(12, 20)))) {
-                        ret[last] = Common.bytes2Hex(key)
-                                + ret[last].substring(12, 32);
-                    } else {
-                        ret[last] = Common.bytes2Hex(key)
-                                + ret[last].substring(12, 20) + NO_KEY;
-                    }
-                } else {
-                    ret[last] = NO_KEY + ret[last].substring(12, 20)
-                            + Common.bytes2Hex(key);
+                ret[last] = Common.bytes2Hex(key)
+                        + ret[last].substring(12, 20) + NO_KEY;
+            }
+        } else {
+            ret[last] = NO_KEY + ret[last].substring(12, 20)
+                    + Common.bytes2Hex(key);
+        }
+        return ret;
+    }
+
+    /**
+     * Write blocks of one sector with a single authentication. After a
+     * failed write the sector will be re-authenticated once and the
+     * remaining blocks will still be written. The sector trailer should
+     * be the last block, because writing it might change the keys.
+     *
+     * @param sectorIndex Index of the sector to write to.
+     * @param blockIndices Indices of the blocks within the sector
+     *                    (0-3 or 0-15).
+     * @param data        Data for the blocks (16 bytes each).
+     * @param key         Key for authentication.
+     * @param useAsKeyB   If true, key will be treated as key B.
+     * @return <ul>
+     * <li>0 - Everything (authentication and writing) was O.K.</li>
+     * <li>1 - Sector or block out of range or data not 16 bytes.</li>
+     * <li>2 - Authentication failed.</li>
+     * <li>-1 - Error while writing at least one block.</li>
+     * </ul>
+     * @throws TagLostException Tag was removed during writing.
+     */
+    public int writeSector(int sectorIndex, int[] blockIndices, byte[][] data,
+                           byte[] key, boolean useAsKeyB)
+            throws TagLostException {
+        if (sectorIndex < 0 || sectorIndex >= getSectorCount()
+                || blockIndices.length != data.length) {
+            return 1;
+        }
+        int blockCount = mMFC.getBlockCountInSector(sectorIndex);
+        for (int i = 0; i < blockIndices.length; i++) {
+            if (blockIndices[i] < 0 || blockIndices[i] >= blockCount
+                    || data[i] == null || data[i].length != 16) {
+                return 1;
+            }
+        }
+        if (!authenticate(sectorIndex, key, useAsKeyB,
+                CancellationToken.NONE)) {
+            return 2;
+        }
+        int firstBlock = mMFC.sectorToBlock(sectorIndex);
+        int ret = 0;
+        for (int i = 0; i < blockIndices.length; i++) {
+            try {
+                mMFC.writeBlock(firstBlock + blockIndices[i], data[i]);
+            } catch (TagLostException e) {
+                throw e;
+            } catch (IOException e) {
+                DiagLog.log(DiagLog.EVENT_WRITE_BLOCK_ERROR, sectorIndex,
+                        firstBlock + blockIndices[i], 0);
+                if (!mMFC.isConnected()) {
+                    throw new TagLostException(
+                            "Tag removed during writeSector(...)");
+                }
+                ret = -1;
+                // After an error, a re-authentication is needed.
+                if (!authenticate(sectorIndex, key, useAsKeyB,
+                        CancellationToken.NONE)) {
+                    return -1;
+                }
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Read some blocks of a sector with a single authentication (no
+     * re-authentication and no retry on errors). Used where every RF
+     * transaction counts (see {@link CardIdentifier}).
+     *
+     * @param sectorIndex  Index of the sector to read.
+     * @param blockIndices Indices of the blocks within the sector.
+     * @param key          Key for authentication.
+     * @param useAsKeyB    If true, key will be treated as key B.
+     * @return Raw blocks (16 bytes each, "null" if a block could not be read)
+     * or "null" if authentication failed.
+     * @throws TagLostException Tag was removed during reading.
+     * @see #readBlocks(int, int[], byte[], boolean, CancellationToken)
+     */
+    public byte[][] readBlocks(int sectorIndex, int[] blockIndices,
+                               byte[] key, boolean useAsKeyB)
+            throws TagLostException {
+        return readBlocks(sectorIndex, blockIndices, key, useAsKeyB,
+                CancellationToken.NONE);
+    }
+
+    /**
+     * Read some blocks of a sector with a single authentication (no
+     * re-authentication and no retry on errors). The token is checked
+     * before the authentication and before every block.
+     *
+     * @param sectorIndex  Index of the sector to read.
+     * @param blockIndices Indices of the blocks within the sector.
+     * @param key          Key for authentication.
+     * @param useAsKeyB    If true, key will be treated as key B.
+     * @param token        Token to abort reading.
+     * @return See {@link #readBlocks(int, int[], byte[], boolean)}. "null"
+     * if reading was cancelled before all blocks were read.
+     * @throws TagLostException Tag was removed during reading.
+     */
+    public byte[][] readBlocks(int sectorIndex, int[] blockIndices,
+                               byte[] key, boolean useAsKeyB,
+                               CancellationToken token)
+            throws TagLostException {
+        if (!authenticate(sectorIndex, key, useAsKeyB, token)) {
+            if (!mMFC.isConnected()) {
+                throw new TagLostException(
+                        "Tag removed during readBlocks(...)");
+            }
+            return null;
+        }
+        int firstBlock = mMFC.sectorToBlock(sectorIndex);
+        byte[][] ret = new byte[blockIndices.length][];
+        for (int i = 0; i < blockIndices.length; i++) {
+            if (token.isCancelled()) {
+                return null;
+            }
+            try {
+                byte[] blockBytes = mMFC.readBlock(
+                        firstBlock + blockIndices[i]);
+                if (blockBytes.length >= 16) {
+                    ret[i] = Arrays.copyOf(blockBytes, 16);
+                    DiagLog.log(DiagLog.EVENT_READ_BLOCK, sectorIndex,
+                            firstBlock + blockIndices[i], 0);
                 }
+            } catch (TagLostException e) {
+                throw e;
+            } catch (IOException e) {
+                DiagLog.log(DiagLog.EVENT_READ_BLOCK_ERROR, sectorIndex,
+                        firstBlock + blockIndices[i], 0);
+                if (!mMFC.isConnected()) {
+                    throw new TagLostException(
+                            "Tag removed during readBlocks(...)");
+                }
+                // Without re-authentication, the next block will fail too.
+                break;
             }
         }
         return ret;
     }
 
+    /**
+     * Get the UID of the tag.
+     *
+     * @return The UID.
+     */
+    public byte[] getUID() {
+        return mUID;
+    }
+
+    /**
+     * Get the SAK of the tag (from the anticollision, no RF transaction).
+     *
+     * @return The SAK or -1 if unknown.
+     */
+    public short getSak() {
+        return mSak;
+    }
+
+    /**
+     * Get the ATQA of the tag (from the anticollision, no RF transaction).
+     *
+     * @return The ATQA (2 bytes) or "null" if unknown.
+     */
+    public byte[] getAtqa() {
+        return mAtqa;
+    }
+
+    /**
+     * Get the number of sectors of the tag.
+     *
+     * @return Number of sectors.
+     */
+    public int getSectorCount() {
+        return mMFC.getSectorCount();
+    }
+
+    /**
+     * Get the size of the tag in bytes.
+     *
+     * @return Size of the tag (e.g. {@link MifareClassic#SIZE_1K}).
+     */
+    public int getSize() {
+        return mMFC.getSize();
+    }
+
+    /**
+     * Start the threads for connecting and decoding (see
+     * {@link #createWorkers(String)}), so the first tap does not have to.
+     */
+    static void startWorkers() {
+        CONNECT_EXECUTOR.prestartCoreThread();
+        DECODE_EXECUTOR.prestartCoreThread();
+    }
+
+    /**
+     * Warm up the read path: run the decoding code with synthetic data,
+     * so it is already compiled by the JIT when the first tag is read.
+     * Should be called in the background (see {@link Common#warmUp()}).
+     */
+    static void warmUp() {
+        byte[][] blocks = new byte[4][16];
+        byte[] key = MifareClassic.KEY_DEFAULT;
+        for (int i = 0; i < WARM_UP_ITERATIONS; i++) {
+            blocks[0][0] = (byte) i;
+            decodeSector(blocks, key, (i & 1) == 0);
+        }
+    }
+
     /**
      * Check if key B is readable.
      * Key B is readable for the following configurations:
@@ -333,7 +1020,7 @@ public class MCReader {
      * @param ac The access conditions (4 bytes).
      * @return True if key B is readable. False otherwise.
      */
-    private boolean isKeyBReadable(byte[] ac) {
+    private static boolean isKeyBReadable(byte[] ac) {
         if (ac == null) {
             return false;
         }
@@ -347,19 +1034,22 @@ public class MCReader {
     }
 
     private boolean authenticate(int sectorIndex, byte[] key,
-                                 boolean useAsKeyB) {
+                                 boolean useAsKeyB, CancellationToken token) {
         // Fetch the retry authentication option. Some tags and
         // devices have strange issues and need a retry in order to work...
         // Info: https://github.com/ikarus23/MifareClassicTool/issues/134
         // and https://github.com/ikarus23/MifareClassicTool/issues/106
-        boolean retryAuth = Common.getPreferences().getBoolean("use_retry_authentication", false);
-        int retryCount = Common.getPreferences().getInt(
-                "retry_authentication_count", 1);
+        // The settings are cached by Common (see Common#warmUp()).
+        boolean retryAuth = Common.useRetryAuthentication();
+        int retryCount = Common.getRetryAuthenticationCount();
         if (key == null) {
             return false;
         }
         boolean ret = false;
         for (int i = 0; i < retryCount + 1; i++) {
+            if (token.isCancelled()) {
+                return false;
+            }
             try {
                 if (!useAsKeyB) {
                     // Key A.
@@ -369,7 +1059,8 @@ public class MCReader {
                     ret = mMFC.authenticateSectorWithKeyB(sectorIndex, key);
                 }
             } catch (IOException | ArrayIndexOutOfBoundsException e) {
-                Log.d("MCReader", "Error authenticating with tag.");
+                DiagLog.log(DiagLog.EVENT_AUTH_ERROR, sectorIndex, -1,
+                        useAsKeyB ? 1 : 0);
                 return false;
             }
             // Retry?
@@ -377,6 +1068,8 @@ public class MCReader {
                 break;
             }
         }
+        DiagLog.log(ret ? DiagLog.EVENT_AUTH : DiagLog.EVENT_AUTH_FAILED,
+                sectorIndex, -1, useAsKeyB ? 1 : 0);
         return ret;
     }
 
@@ -4,11 +4,11 @@ import android.app.PendingIntent;
 import android.content.Intent;
 import android.nfc.NfcAdapter;
 import android.nfc.Tag;
-import android.nfc.tech.MifareClassic;
 import android.os.Bundle;
 import com.google.android.material.snackbar.Snackbar;
 import androidx.appcompat.app.AppCompatActivity;
 import android.util.Log;
+import android.util.SparseArray;
 import android.view.View;
 import androidx.navigation.NavController;
 import androidx.navigation.Navigation;
@@ -18,7 +18,6 @@ import com.example.nfccard.databinding.ActivityMainBinding;
 import android.view.Menu;
 import android.view.MenuItem;
 import android.widget.Toast;
-import java.io.IOException;
 
 public class MainActivity extends AppCompatActivity {
 
@@ -99,6 +98,8 @@ public class MainActivity extends AppCompatActivity {
     protected void onPause() {
         super.onPause();
         //Onpause stop listening
+        // The user left the screen. Stop the current read.
+        Common.cancelRead();
         if (mNfcAdapter != null) {
             mNfcAdapter.disableForegroundDispatch(this);
         }
@@ -121,46 +122,71 @@ public class MainActivity extends AppCompatActivity {
                 || NfcAdapter.ACTION_NDEF_DISCOVERED.equals(action)) {
             //  3) Get an instance of the TAG from the NfcAdapter
             Tag tagFromIntent = (Tag) intent.getParcelableExtra(NfcAdapter.EXTRA_TAG);
-            // 4) Get an instance of the Mifare classic card from this TAG intent
-            MifareClassic mfc = MifareClassic.get(tagFromIntent);
-            byte[] data;
-            try {       //  5.1) Connect to card
-                mfc.connect();
-                boolean auth = false;
-                String cardData = null;
-                // 5.2) and get the number of sectors this card has..and loop thru these sectors
-                int secCount = mfc.getSectorCount();
-                int bCount = 0;
-                int bIndex = 0;
-                for (int j = 0; j < secCount; j++) {
-                    // 6.1) authenticate the sector
-                    auth = mfc.authenticateSectorWithKeyA(j, MifareClassic.KEY_DEFAULT);
-                    if (auth) {
-                        // 6.2) In each sector - get the block count
-                        bCount = mfc.getBlockCountInSector(j);
-                        bIndex = 0;
-                        bIndex = mfc.sectorToBlock(j);
-                        for (int i = 0; i < bCount; i++) {
-                            // 6.3) Read the block
-                            data = mfc.readBlock(bIndex);
-                            // 7) Convert the data into a string from Hex format.
-                            // Log.i("MIFARE", getHexString(data, data.length));
-                            // Log.i("MIFARE", "Paso 7");
-                            // Log.i("MIFARE", data.toString());
-                            toHexString(data);
-                            bIndex++;
-                        }
-                    } else { // Authentication failed - Handle it
-
-                    }
-                }
-                mfc.close();
-            } catch (IOException e) {
-                Log.e("MIFARE", "ERROR" + e.getLocalizedMessage());
+            // In batch mode the card will be written, not read.
+            BatchProvisioner provisioner = Common.getBatchProvisioner();
+            if (provisioner != null) {
+                provisioner.onTag(tagFromIntent);
+                return;
             }
+            // A new tag cancels a read which is still running.
+            Common.setTag(tagFromIntent);
+            final CancellationToken token =
+                    Common.startRead(Common.READ_TIMEOUT);
+            final boolean quickIdentify = Common.isQuickIdentifyMode();
+            // Do not block the UI thread. Otherwise the next tag and
+            // onPause() could not cancel this read.
+            Common.runRead(() -> readTag(tagFromIntent, token, quickIdentify));
         } // End of method
     }
 
+    /**
+     * Connect to the tag and identify or read it (see {@link TapReader}).
+     * Runs on the read worker (see {@link Common#runRead(Runnable)}).
+     * The result is handed back to the UI thread.
+     *
+     * @param tag           The tag.
+     * @param token         Token of the read operation.
+     * @param quickIdentify If true, the card will only be identified and
+     *                      only read completely if the identification is
+     *                      not conclusive.
+     */
+    private void readTag(Tag tag, CancellationToken token,
+                         boolean quickIdentify) {
+        // 4) Get an instance of the Mifare classic card from this TAG
+        // 5) Connect to the card, identify and read it.
+        TapReader.Result result =
+                TapReader.read(MCReader.get(tag), token, quickIdentify);
+        SparseArray<String[]> dump = result.getDump();
+        CardIdentifier.Identification identification =
+                result.getIdentification();
+        if (dump != null) {
+            showResult(token, dump.size() + "/" + result.getSectorsRequested()
+                    + " sectores leidos");
+        } else if (identification != null
+                && result.getOutcome() == ScanRecord.OUTCOME_OK) {
+            showResult(token, identification.toString()
+                    + (identification.isConsistent() ? "" : " (?)"));
+        } else {
+            showResult(token, "Error: Etiqueta retirada durante la lectura");
+        }
+    }
+
+    /**
+     * Show the result of a read operation on the UI thread. Results of
+     * read operations which were replaced by a newer one or cancelled
+     * (see {@link Common#cancelRead()}) will be dropped.
+     *
+     * @param token   Token of the read operation.
+     * @param message The result.
+     */
+    private void showResult(CancellationToken token, String message) {
+        runOnUiThread(() -> {
+            if (Common.isCurrentRead(token) && !isFinishing()) {
+                Toast.makeText(this, message, Toast.LENGTH_LONG).show();
+            }
+        });
+    }
+
     public static String toHexString(byte[] bytes) {
         final char[] HEX_ARRAY = "0123456789ABCDEF".toCharArray();
         char[] hexChars = new char[bytes.length * 2];
@@ -169,7 +195,6 @@ public class MainActivity extends AppCompatActivity {
             hexChars[j * 2] = HEX_ARRAY[v >>> 4];
             hexChars[j * 2 + 1] = HEX_ARRAY[v & 0x0F];
         }
-        Log.d("MIFARE", "response: " + new String(hexChars));
         return new String(hexChars);
     }
 
@@ -0,0 +1,38 @@
+package com.example.nfccard;
+
+import android.nfc.tech.MifareClassic;
+
+import java.io.IOException;
+
+/**
+ * The MIFARE Classic operations {@link MCReader} uses. In the app they are
+ * backed by {@link MifareClassic} (see {@link MCReader#get(android.nfc.Tag)}),
+ * tests can use emulated cards instead.
+ * The methods behave like the ones of {@link MifareClassic}.
+ */
+public interface MifareClassicTech {
+
+    void connect() throws IOException;
+
+    void close() throws IOException;
+
+    boolean isConnected();
+
+    boolean authenticateSectorWithKeyA(int sectorIndex, byte[] key)
+            throws IOException;
+
+    boolean authenticateSectorWithKeyB(int sectorIndex, byte[] key)
+            throws IOException;
+
+    byte[] readBlock(int blockIndex) throws IOException;
+
+    void writeBlock(int blockIndex, byte[] data) throws IOException;
+
+    int getSize();
+
+    int getSectorCount();
+
+    int getBlockCountInSector(int sectorIndex);
+
+    int sectorToBlock(int sectorIndex);
+}
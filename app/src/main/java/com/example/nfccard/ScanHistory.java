@@ -0,0 +1,253 @@
+package com.example.nfccard;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+import android.util.Log;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Persistent history of all scans (UID, time, sectors read, keys used,
+ * duration and outcome). {@link #record(ScanRecord)} only queues the record
+ * in memory and never blocks. The queue will be written in batches (one
+ * transaction per batch) by a background thread. The database uses
+ * write-ahead logging, so reading the history does not block writing.
+ * Records older than {@link #RETENTION_MILLIS} will be pruned.
+ */
+public class ScanHistory extends SQLiteOpenHelper {
+
+    public static final String DATABASE_NAME = "scan_history.db";
+    private static final int DATABASE_VERSION = 1;
+
+    public static final String TABLE = "scans";
+    public static final String COLUMN_ID = "_id";
+    public static final String COLUMN_UID = "uid";
+    public static final String COLUMN_TIMESTAMP = "timestamp";
+    public static final String COLUMN_SECTORS_READ = "sectors_read";
+    public static final String COLUMN_KEYS_USED = "keys_used";
+    public static final String COLUMN_DURATION = "duration";
+    public static final String COLUMN_OUTCOME = "outcome";
+    /**
+     * All columns in table order.
+     */
+    public static final String[] COLUMNS = {COLUMN_ID, COLUMN_UID,
+            COLUMN_TIMESTAMP, COLUMN_SECTORS_READ, COLUMN_KEYS_USED,
+            COLUMN_DURATION, COLUMN_OUTCOME};
+
+    /**
+     * Records older than this (90 days) will be deleted.
+     */
+    public static final long RETENTION_MILLIS = 90L * 24 * 60 * 60 * 1000;
+    private static final long PRUNE_INTERVAL_MILLIS = 60L * 60 * 1000;
+    /**
+     * If more records are waiting, new records will be dropped
+     * (the database can not keep up).
+     */
+    private static final int MAX_PENDING = 10000;
+    /**
+     * Maximum number of records per transaction.
+     */
+    private static final int MAX_BATCH = 500;
+
+    private final ConcurrentLinkedQueue<ScanRecord> mPending =
+            new ConcurrentLinkedQueue<>();
+    private final AtomicInteger mPendingCount = new AtomicInteger(0);
+    private final AtomicBoolean mFlushScheduled = new AtomicBoolean(false);
+    private final ExecutorService mWriter =
+            Executors.newSingleThreadExecutor(r -> {
+                Thread t = new Thread(r, "ScanHistory-writer");
+                t.setDaemon(true);
+                return t;
+            });
+    private long mLastPrune = 0;
+
+    /**
+     * Use {@link Common#getScanHistory()} to get the instance of the app.
+     *
+     * @param context The application context.
+     */
+    ScanHistory(Context context) {
+        super(context, DATABASE_NAME, null, DATABASE_VERSION);
+        setWriteAheadLoggingEnabled(true);
+    }
+
+    @Override
+    public void onCreate(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + TABLE + " ("
+                + COLUMN_ID + " INTEGER PRIMARY KEY AUTOINCREMENT, "
+                + COLUMN_UID + " TEXT NOT NULL, "
+                + COLUMN_TIMESTAMP + " INTEGER NOT NULL, "
+                + COLUMN_SECTORS_READ + " INTEGER NOT NULL, "
+                + COLUMN_KEYS_USED + " TEXT, "
+                + COLUMN_DURATION + " INTEGER NOT NULL, "
+                + COLUMN_OUTCOME + " INTEGER NOT NULL)");
+        db.execSQL("CREATE INDEX idx_scans_uid ON " + TABLE
+                + " (" + COLUMN_UID + ", " + COLUMN_TIMESTAMP + ")");
+        db.execSQL("CREATE INDEX idx_scans_timestamp ON " + TABLE
+                + " (" + COLUMN_TIMESTAMP + ")");
+    }
+
+    @Override
+    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        // Nothing to do (first version).
+    }
+
+    /**
+     * Add a record to the history. This only queues the record, it will
+     * be written to the database later by a background thread.
+     *
+     * @param record The record to add.
+     */
+    public void record(ScanRecord record) {
+        if (mPendingCount.incrementAndGet() > MAX_PENDING) {
+            mPendingCount.decrementAndGet();
+            Log.d("ScanHistory", "Too many pending records. Record dropped.");
+            return;
+        }
+        mPending.offer(record);
+        // Schedule one flush for all records that arrive in the meantime.
+        if (mFlushScheduled.compareAndSet(false, true)) {
+            mWriter.execute(this::flush);
+        }
+    }
+
+    /**
+     * Wait until all records added so far are written to the database
+     * (e.g. before an export which must include the latest taps).
+     * Do not call this on the UI thread.
+     *
+     * @param timeoutMillis Maximum time to wait in milliseconds.
+     * @return True if all records were written in time.
+     */
+    public boolean awaitWritten(long timeoutMillis) {
+        // The writer runs its tasks in order. Once this one is done, all
+        // flushes scheduled before are done too.
+        Future<?> marker = mWriter.submit(() -> { });
+        try {
+            marker.get(timeoutMillis, TimeUnit.MILLISECONDS);
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (ExecutionException | TimeoutException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Write all pending records to the database (one transaction per
+     * {@link #MAX_BATCH} records). Runs on the writer thread.
+     */
+    private void flush() {
+        mFlushScheduled.set(false);
+        try {
+            SQLiteDatabase db = getWritableDatabase();
+            while (!mPending.isEmpty()) {
+                writeBatch(db);
+            }
+            long now = System.currentTimeMillis();
+            if (now - mLastPrune > PRUNE_INTERVAL_MILLIS) {
+                mLastPrune = now;
+                prune(db, now - RETENTION_MILLIS);
+            }
+        } catch (SQLiteException e) {
+            Log.e("ScanHistory", "Error while writing scan history.", e);
+        }
+    }
+
+    private void writeBatch(SQLiteDatabase db) {
+        SQLiteStatement insert = db.compileStatement("INSERT INTO " + TABLE
+                + " (" + COLUMN_UID + ", " + COLUMN_TIMESTAMP + ", "
+                + COLUMN_SECTORS_READ + ", " + COLUMN_KEYS_USED + ", "
+                + COLUMN_DURATION + ", " + COLUMN_OUTCOME
+                + ") VALUES (?, ?, ?, ?, ?, ?)");
+        db.beginTransactionNonExclusive();
+        try {
+            ScanRecord record;
+            int count = 0;
+            while (count < MAX_BATCH && (record = mPending.poll()) != null) {
+                mPendingCount.decrementAndGet();
+                insert.clearBindings();
+                insert.bindString(1, record.getUID());
+                insert.bindLong(2, record.getTimestamp());
+                insert.bindLong(3, record.getSectorsRead());
+                if (record.getKeysUsed() != null) {
+                    insert.bindString(4, record.getKeysUsed());
+                } else {
+                    insert.bindNull(4);
+                }
+                insert.bindLong(5, record.getDuration());
+                insert.bindLong(6, record.getOutcome());
+                insert.executeInsert();
+                count++;
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            insert.close();
+        }
+    }
+
+    private void prune(SQLiteDatabase db, long before) {
+        int deleted = db.delete(TABLE, COLUMN_TIMESTAMP + " < ?",
+                new String[]{String.valueOf(before)});
+        if (deleted > 0) {
+            Log.d("ScanHistory", "Pruned " + deleted + " old records.");
+        }
+    }
+
+    /**
+     * Get all records added after the given one (uses the primary key).
+     * Used for incremental exports (see {@link DumpExporter}).
+     *
+     * @param afterId Only records with a greater ID will be returned.
+     * @return Records (all {@link #COLUMNS}), ordered by ID.
+     * The caller has to close the cursor.
+     */
+    public Cursor queryAfterId(long afterId) {
+        return getReadableDatabase().query(TABLE, COLUMNS,
+                COLUMN_ID + " > ?", new String[]{String.valueOf(afterId)},
+                null, null, COLUMN_ID + " ASC", null);
+    }
+
+    /**
+     * Get the history of a tag (uses the UID index).
+     *
+     * @param uid   UID of the tag (hex).
+     * @param limit Maximum number of records.
+     * @return Records of the tag (all {@link #COLUMNS}), newest first.
+     * The caller has to close the cursor.
+     */
+    public Cursor queryByUID(String uid, int limit) {
+        return getReadableDatabase().query(TABLE, COLUMNS,
+                COLUMN_UID + " = ?", new String[]{uid}, null, null,
+                COLUMN_TIMESTAMP + " DESC", String.valueOf(limit));
+    }
+
+    /**
+     * Get the history of a period of time (uses the timestamp index).
+     *
+     * @param from Start ({@link System#currentTimeMillis()}, inclusive).
+     * @param to   End ({@link System#currentTimeMillis()}, exclusive).
+     * @return Records of the period (all {@link #COLUMNS}), oldest first.
+     * The caller has to close the cursor.
+     */
+    public Cursor queryByTime(long from, long to) {
+        return getReadableDatabase().query(TABLE, COLUMNS,
+                COLUMN_TIMESTAMP + " >= ? AND " + COLUMN_TIMESTAMP + " < ?",
+                new String[]{String.valueOf(from), String.valueOf(to)},
+                null, null, COLUMN_TIMESTAMP + " ASC", null);
+    }
+}
@@ -0,0 +1,78 @@
+package com.example.nfccard;
+
+/**
+ * One entry of the scan history (see {@link ScanHistory}).
+ */
+public class ScanRecord {
+
+    /**
+     * All sectors of the key map were read.
+     */
+    public static final int OUTCOME_OK = 0;
+    /**
+     * Some sectors could not be read (wrong keys, locked sectors).
+     */
+    public static final int OUTCOME_PARTIAL = 1;
+    /**
+     * Reading was cancelled (see {@link CancellationToken}).
+     */
+    public static final int OUTCOME_CANCELLED = 2;
+    /**
+     * The tag was removed during reading.
+     */
+    public static final int OUTCOME_TAG_LOST = 3;
+    /**
+     * Any other error (e.g. no sector could be read).
+     */
+    public static final int OUTCOME_ERROR = 4;
+
+    private final String mUID;
+    private final long mTimestamp;
+    private final int mSectorsRead;
+    private final String mKeysUsed;
+    private final long mDuration;
+    private final int mOutcome;
+
+    /**
+     * @param uid         UID of the tag (hex).
+     * @param timestamp   Time of the tap ({@link System#currentTimeMillis()}).
+     * @param sectorsRead Number of sectors read.
+     * @param keysUsed    Keys which were valid for reading (hex, comma
+     *                    separated) or "null".
+     * @param duration    Duration of the read operation in milliseconds.
+     * @param outcome     One of the OUTCOME constants.
+     */
+    public ScanRecord(String uid, long timestamp, int sectorsRead,
+                      String keysUsed, long duration, int outcome) {
+        mUID = uid;
+        mTimestamp = timestamp;
+        mSectorsRead = sectorsRead;
+        mKeysUsed = keysUsed;
+        mDuration = duration;
+        mOutcome = outcome;
+    }
+
+    public String getUID() {
+        return mUID;
+    }
+
+    public long getTimestamp() {
+        return mTimestamp;
+    }
+
+    public int getSectorsRead() {
+        return mSectorsRead;
+    }
+
+    public String getKeysUsed() {
+        return mKeysUsed;
+    }
+
+    public long getDuration() {
+        return mDuration;
+    }
+
+    public int getOutcome() {
+        return mOutcome;
+    }
+}
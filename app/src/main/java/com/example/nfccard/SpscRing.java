@@ -0,0 +1,101 @@
+package com.example.nfccard;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lock-free, bounded ring buffer for exactly one producer thread and
+ * exactly one consumer thread. Used by {@link MCReader} to hand raw
+ * sector data from the RF I/O thread to the decoding thread without
+ * blocking the I/O thread.
+ *
+ * @param <T> Type of the elements.
+ */
+class SpscRing<T> {
+
+    private final Object[] mBuffer;
+    private final int mMask;
+    /**
+     * Index of the next element to read. Only written by the consumer.
+     */
+    private final AtomicLong mHead = new AtomicLong(0);
+    /**
+     * Index of the next element to write. Only written by the producer.
+     */
+    private final AtomicLong mTail = new AtomicLong(0);
+
+    /**
+     * Create a new ring.
+     *
+     * @param capacity Capacity of the ring. Will be rounded up to the next
+     *                 power of two.
+     */
+    SpscRing(int capacity) {
+        int size = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+        mBuffer = new Object[size];
+        mMask = size - 1;
+    }
+
+    /**
+     * Add an element (producer thread only).
+     *
+     * @param element Element to add. Must not be "null".
+     * @return True if the element was added. False if the ring is full.
+     */
+    boolean offer(T element) {
+        long tail = mTail.get();
+        if (tail - mHead.get() == mBuffer.length) {
+            return false;
+        }
+        mBuffer[(int) tail & mMask] = element;
+        // Publish the element (release).
+        mTail.lazySet(tail + 1);
+        return true;
+    }
+
+    /**
+     * Remove the oldest element (consumer thread only).
+     *
+     * @return The oldest element or "null" if the ring is empty.
+     */
+    @SuppressWarnings("unchecked")
+    T poll() {
+        long head = mHead.get();
+        if (head == mTail.get()) {
+            return null;
+        }
+        int index = (int) head & mMask;
+        T element = (T) mBuffer[index];
+        mBuffer[index] = null;
+        // Free the slot for the producer (release).
+        mHead.lazySet(head + 1);
+        return element;
+    }
+
+    /**
+     * Get the number of elements in the ring. The other thread might
+     * change it right after.
+     *
+     * @return Number of elements.
+     */
+    int size() {
+        return (int) (mTail.get() - mHead.get());
+    }
+
+    /**
+     * Get the capacity of the ring.
+     *
+     * @return Capacity (a power of two).
+     */
+    int capacity() {
+        return mBuffer.length;
+    }
+
+    /**
+     * Check if the ring is empty.
+     *
+     * @return True if there are no elements in the ring.
+     */
+    boolean isEmpty() {
+        return mHead.get() == mTail.get();
+    }
+}
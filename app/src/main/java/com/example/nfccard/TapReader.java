@@ -0,0 +1,159 @@
+package com.example.nfccard;
+
+import android.util.SparseArray;
+
+import java.util.Collections;
+import java.util.Set;
+
+/**
+ * Worker side of a tap: connect, identify the card (see
+ * {@link CardIdentifier}) and, unless the quick identification is enabled
+ * and conclusive, read it with the key map of its profile. Runs on the read
+ * worker (see {@link Common#runRead(Runnable)}). The UI only shows the
+ * {@link Result}.
+ */
+public class TapReader {
+
+    /**
+     * Result of {@link #read(MCReader, CancellationToken, boolean)}.
+     */
+    public static class Result {
+        private final int mOutcome;
+        private final CardIdentifier.Identification mIdentification;
+        private final SparseArray<String[]> mDump;
+        private final int mSectorsRequested;
+
+        Result(int outcome, CardIdentifier.Identification identification,
+               SparseArray<String[]> dump, int sectorsRequested) {
+            mOutcome = outcome;
+            mIdentification = identification;
+            mDump = dump;
+            mSectorsRequested = sectorsRequested;
+        }
+
+        /**
+         * @return One of the {@link ScanRecord} OUTCOME constants.
+         */
+        public int getOutcome() {
+            return mOutcome;
+        }
+
+        /**
+         * @return The identification or "null" if the tag was lost before.
+         */
+        public CardIdentifier.Identification getIdentification() {
+            return mIdentification;
+        }
+
+        /**
+         * @return The sectors read or "null" if the card was not read
+         * completely (conclusive quick identification or tag lost).
+         */
+        public SparseArray<String[]> getDump() {
+            return mDump;
+        }
+
+        /**
+         * @return Number of sectors in the key map of the full read.
+         */
+        public int getSectorsRequested() {
+            return mSectorsRequested;
+        }
+    }
+
+    private TapReader() {
+    }
+
+    /**
+     * Connect to the card, identify it and read it if needed. The reader
+     * will be closed. Every tap of a MIFARE Classic tag is added to the
+     * scan history: the full read by
+     * {@link MCReader#readAsMuchAsPossible(SparseArray, CancellationToken)},
+     * all other outcomes (connection failed, conclusive quick
+     * identification, tag lost during the identification) here.
+     *
+     * @param reader        Reader of the tag (not connected yet) or "null"
+     *                      if the tag is not a MIFARE Classic tag.
+     * @param token         Token of the read operation.
+     * @param quickIdentify If true, the card will only be read completely
+     *                      if the identification is not conclusive.
+     * @return The result.
+     */
+    public static Result read(MCReader reader, CancellationToken token,
+                              boolean quickIdentify) {
+        if (reader == null) {
+            // Not a MIFARE Classic tag (no UID for the history).
+            return new Result(ScanRecord.OUTCOME_ERROR, null, null, 0);
+        }
+        long start = System.nanoTime();
+        long timestamp = System.currentTimeMillis();
+        if (Common.connectReader(reader, token) == null) {
+            return recordScan(reader, start, timestamp, null,
+                    token.isCancelled() ? ScanRecord.OUTCOME_CANCELLED
+                            : ScanRecord.OUTCOME_TAG_LOST);
+        }
+        try {
+            // One or two RF transactions. The key of sector 0 tells how
+            // the card is formatted (see CardIdentifier#createKeyMap()).
+            CardIdentifier.Identification identification =
+                    CardIdentifier.identify(reader, false, token);
+            if (identification == null) {
+                return recordScan(reader, start, timestamp, null,
+                        ScanRecord.OUTCOME_TAG_LOST);
+            }
+            if (quickIdentify && identification.isConclusive()) {
+                return recordScan(reader, start, timestamp, identification,
+                        ScanRecord.OUTCOME_OK);
+            }
+            // The read (and its scan history entry) is handled by the
+            // reader.
+            SparseArray<byte[][]> keyMap = CardIdentifier.createKeyMap(
+                    identification.getProfile(), identification.getKey(),
+                    reader.getSectorCount());
+            SparseArray<String[]> dump =
+                    reader.readAsMuchAsPossible(keyMap, token);
+            int outcome;
+            if (dump == null) {
+                outcome = ScanRecord.OUTCOME_TAG_LOST;
+            } else if (token.isCancelled()) {
+                outcome = ScanRecord.OUTCOME_CANCELLED;
+            } else if (dump.size() == 0) {
+                outcome = ScanRecord.OUTCOME_ERROR;
+            } else if (dump.size() < keyMap.size()) {
+                outcome = ScanRecord.OUTCOME_PARTIAL;
+            } else {
+                outcome = ScanRecord.OUTCOME_OK;
+            }
+            return new Result(outcome, identification, dump, keyMap.size());
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Add a tap without a full read to the scan history (see
+     * {@link MCReader#recordScan(long, long, int, Set, int)}).
+     *
+     * @param reader         Reader of the tag.
+     * @param start          Start of the tap ({@link System#nanoTime()}).
+     * @param timestamp      Start of the tap
+     *                       ({@link System#currentTimeMillis()}).
+     * @param identification The identification or "null".
+     * @param outcome        One of the {@link ScanRecord} OUTCOME constants.
+     * @return The result of the tap.
+     */
+    private static Result recordScan(MCReader reader, long start,
+                                     long timestamp,
+                                     CardIdentifier.Identification
+                                             identification,
+                                     int outcome) {
+        byte[] key = identification != null ? identification.getKey() : null;
+        // Only sector 0 is read by the identification.
+        reader.recordScan(start, timestamp, key != null ? 1 : 0,
+                key != null
+                        ? Collections.singleton(Common.bytes2Hex(key))
+                        : null,
+                outcome);
+        return new Result(outcome, identification, null, 0);
+    }
+}
@@ -0,0 +1,109 @@
+package com.example.nfccard;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Per-card turnaround metrics of a batch of cards. Collects the latency of
+ * every card and reports the throughput (cards/minute) and latency
+ * percentiles. This class is thread-safe.
+ */
+public class TurnaroundStats {
+
+    private long[] mLatencies = new long[256];
+    private int mCount = 0;
+    private int mFailed = 0;
+    private long mFirstStart = -1;
+    private long mLastEnd = -1;
+
+    /**
+     * Record a processed card.
+     *
+     * @param startNanos Start of the card ({@link System#nanoTime()}).
+     * @param endNanos   End of the card ({@link System#nanoTime()}).
+     * @param success    True if the card was processed successfully.
+     */
+    public synchronized void record(long startNanos, long endNanos,
+                                    boolean success) {
+        if (mCount == mLatencies.length) {
+            mLatencies = Arrays.copyOf(mLatencies, mCount * 2);
+        }
+        mLatencies[mCount++] = endNanos - startNanos;
+        if (!success) {
+            mFailed++;
+        }
+        if (mFirstStart == -1) {
+            mFirstStart = startNanos;
+        }
+        mLastEnd = endNanos;
+    }
+
+    /**
+     * Get the number of recorded cards.
+     *
+     * @return Number of cards (successful and failed).
+     */
+    public synchronized int getCount() {
+        return mCount;
+    }
+
+    /**
+     * Get the number of failed cards.
+     *
+     * @return Number of failed cards.
+     */
+    public synchronized int getFailedCount() {
+        return mFailed;
+    }
+
+    /**
+     * Get the throughput from the start of the first card to the end of
+     * the last card (including the time the user needs to present the
+     * next card).
+     *
+     * @return Cards per minute or 0 if there are not enough cards.
+     */
+    public synchronized double getCardsPerMinute() {
+        if (mCount == 0 || mLastEnd <= mFirstStart) {
+            return 0;
+        }
+        return mCount * 60e9 / (mLastEnd - mFirstStart);
+    }
+
+    /**
+     * Get a latency percentile (nearest-rank method).
+     *
+     * @param percentile Percentile between 0 and 100.
+     * @return Latency in milliseconds or 0 if no card was recorded.
+     */
+    public synchronized double getLatencyPercentile(double percentile) {
+        if (mCount == 0) {
+            return 0;
+        }
+        long[] sorted = Arrays.copyOf(mLatencies, mCount);
+        Arrays.sort(sorted);
+        int rank = (int) Math.ceil(percentile / 100.0 * mCount);
+        rank = Math.min(Math.max(rank, 1), mCount);
+        return sorted[rank - 1] / 1e6;
+    }
+
+    /**
+     * Reset all metrics.
+     */
+    public synchronized void reset() {
+        mCount = 0;
+        mFailed = 0;
+        mFirstStart = -1;
+        mLastEnd = -1;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US,
+                "%d cards (%d failed), %.1f cards/min, "
+                        + "p50 %.1f ms, p90 %.1f ms, p99 %.1f ms",
+                getCount(), getFailedCount(), getCardsPerMinute(),
+                getLatencyPercentile(50), getLatencyPercentile(90),
+                getLatencyPercentile(99));
+    }
+}
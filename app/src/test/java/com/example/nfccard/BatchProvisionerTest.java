@@ -0,0 +1,217 @@
+package com.example.nfccard;
+
+import android.nfc.tech.MifareClassic;
+import android.util.SparseArray;
+
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+@RunWith(RobolectricTestRunner.class)
+public class BatchProvisionerTest {
+
+    private static final String DATA = "00112233445566778899AABBCCDDEEFF";
+    private static final String TRAILER = "FFFFFFFFFFFFFF078069FFFFFFFFFFFF";
+
+    @After
+    public void tearDown() {
+        Common.setBatchProvisioner(null);
+    }
+
+    private static EmulatedCard createCard(long seed) {
+        byte[][] keys = new byte[16][];
+        Arrays.fill(keys, MifareClassic.KEY_DEFAULT);
+        return new EmulatedCard(MifareClassic.SIZE_1K, keys, keys,
+                new EmulatedCard.RfModel(0, 0, 0, 0), new Random(seed));
+    }
+
+    /**
+     * Template for sectors 0 and 1. Sector 1, block 1 is unknown.
+     */
+    private static SparseArray<String[]> createTemplate() {
+        SparseArray<String[]> template = new SparseArray<>();
+        template.put(0, new String[]{DATA, DATA, DATA, TRAILER});
+        template.put(1, new String[]{DATA, MCReader.NO_DATA, DATA, TRAILER});
+        return template;
+    }
+
+    private static SparseArray<byte[][]> createKeyMap() {
+        return createKeyMap(MifareClassic.KEY_DEFAULT, null);
+    }
+
+    private static SparseArray<byte[][]> createKeyMap(byte[] keyA,
+                                                      byte[] keyB) {
+        SparseArray<byte[][]> keyMap = new SparseArray<>();
+        for (int i = 0; i < 16; i++) {
+            keyMap.put(i, new byte[][]{keyA, keyB});
+        }
+        return keyMap;
+    }
+
+    /**
+     * Provision one card and wait for the result.
+     */
+    private static boolean provision(SparseArray<byte[][]> keyMap,
+                                     EmulatedCard card)
+            throws InterruptedException {
+        final CountDownLatch done = new CountDownLatch(1);
+        final boolean[] result = new boolean[1];
+        BatchProvisioner provisioner = new BatchProvisioner(createTemplate(),
+                keyMap, Collections.emptyList(),
+                (cardNumber, success, stats) -> {
+                    result[0] = success;
+                    done.countDown();
+                });
+        provisioner.onCard(new MCReader(card, card.getUID()));
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        provisioner.stop();
+        return result[0];
+    }
+
+    @Test
+    public void writesTemplateWithSerialNumbers() throws InterruptedException {
+        final CountDownLatch done = new CountDownLatch(2);
+        final List<Boolean> results =
+                Collections.synchronizedList(new ArrayList<>());
+        BatchProvisioner provisioner = new BatchProvisioner(createTemplate(),
+                createKeyMap(), Collections.singletonList(
+                new BatchProvisioner.SerialCounter(1, 2, 12, 4, 1000)),
+                (cardNumber, success, stats) -> {
+                    results.add(success);
+                    done.countDown();
+                });
+        EmulatedCard first = createCard(1);
+        EmulatedCard second = createCard(2);
+        byte[] manufacturerBlock = first.getBlock(0).clone();
+        byte[] unknownBlock = first.getBlock(5).clone();
+
+        provisioner.onCard(new MCReader(first, first.getUID()));
+        provisioner.onCard(new MCReader(second, second.getUID()));
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList(true, true), results);
+        assertEquals(2, provisioner.getStats().getCount());
+        assertEquals(0, provisioner.getStats().getFailedCount());
+
+        // Manufacturer block and unknown blocks are skipped.
+        assertArrayEquals(manufacturerBlock, first.getBlock(0));
+        assertArrayEquals(unknownBlock, first.getBlock(5));
+        assertEquals(DATA, Common.bytes2Hex(first.getBlock(1)));
+        assertEquals(DATA, Common.bytes2Hex(first.getBlock(4)));
+        assertEquals(TRAILER, Common.bytes2Hex(first.getBlock(7)));
+        // Serial counter (4 bytes at offset 12 of sector 1, block 2).
+        assertEquals("00112233445566778899AABB000003E8",
+                Common.bytes2Hex(first.getBlock(6)));
+        assertEquals("00112233445566778899AABB000003E9",
+                Common.bytes2Hex(second.getBlock(6)));
+    }
+
+    @Test
+    public void usesKeyAOnBlankCardsWithBothKeys() throws InterruptedException {
+        // Transport configuration: key B is readable and can not be used.
+        EmulatedCard card = createCard(5);
+        assertTrue(provision(createKeyMap(MifareClassic.KEY_DEFAULT,
+                MifareClassic.KEY_DEFAULT), card));
+        assertEquals(DATA, Common.bytes2Hex(card.getBlock(4)));
+    }
+
+    @Test
+    public void fallsBackToKeyB() throws InterruptedException {
+        EmulatedCard card = createCard(6);
+        // Key B not readable (access conditions 7F0788).
+        for (int sector = 0; sector < 2; sector++) {
+            byte[] trailer = card.getBlock(sector * 4 + 3);
+            trailer[6] = 0x7F;
+            trailer[7] = 0x07;
+            trailer[8] = (byte) 0x88;
+        }
+        assertTrue(provision(createKeyMap(new byte[6],
+                MifareClassic.KEY_DEFAULT), card));
+        assertEquals(DATA, Common.bytes2Hex(card.getBlock(4)));
+    }
+
+    @Test
+    public void neverReusesWrittenSerialNumbers() throws InterruptedException {
+        final CountDownLatch done = new CountDownLatch(2);
+        final List<Boolean> results =
+                Collections.synchronizedList(new ArrayList<>());
+        SparseArray<String[]> template = createTemplate();
+        template.put(2, new String[]{DATA, DATA, DATA, TRAILER});
+        BatchProvisioner provisioner = new BatchProvisioner(template,
+                createKeyMap(), Collections.singletonList(
+                new BatchProvisioner.SerialCounter(1, 2, 12, 4, 1000)),
+                (cardNumber, success, stats) -> {
+                    results.add(success);
+                    done.countDown();
+                });
+        // Sector 2 (after the serial counter) can not be written.
+        byte[][] keys = new byte[16][];
+        Arrays.fill(keys, MifareClassic.KEY_DEFAULT);
+        keys[2] = new byte[6];
+        EmulatedCard failing = new EmulatedCard(MifareClassic.SIZE_1K, keys,
+                keys, new EmulatedCard.RfModel(0, 0, 0, 0), new Random(7));
+        EmulatedCard next = createCard(8);
+
+        provisioner.onCard(new MCReader(failing, failing.getUID()));
+        provisioner.onCard(new MCReader(next, next.getUID()));
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        provisioner.stop();
+        assertEquals(Arrays.asList(false, true), results);
+        assertEquals("00112233445566778899AABB000003E8",
+                Common.bytes2Hex(failing.getBlock(6)));
+        assertEquals("00112233445566778899AABB000003E9",
+                Common.bytes2Hex(next.getBlock(6)));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsVariationOfSkippedBlock() {
+        new BatchProvisioner(createTemplate(), createKeyMap(),
+                Collections.singletonList(
+                        new BatchProvisioner.SerialCounter(1, 1, 0, 4, 0)),
+                null);
+    }
+
+    @Test
+    public void stopTurnsBatchModeOff() throws InterruptedException {
+        final CountDownLatch done = new CountDownLatch(1);
+        BatchProvisioner provisioner = new BatchProvisioner(createTemplate(),
+                createKeyMap(), Collections.emptyList(),
+                (cardNumber, success, stats) -> done.countDown());
+        Common.setBatchProvisioner(provisioner);
+        provisioner.stop();
+        assertNull(Common.getBatchProvisioner());
+
+        // Cards presented after stop() are ignored (no exception).
+        EmulatedCard card = createCard(3);
+        provisioner.onCard(new MCReader(card, card.getUID()));
+        assertFalse(done.await(200, TimeUnit.MILLISECONDS));
+        assertEquals(0, card.getRFOperations());
+    }
+
+    @Test
+    public void writeSectorChecksArgumentsAndKey() throws Exception {
+        EmulatedCard card = createCard(4);
+        MCReader reader = new MCReader(card, card.getUID());
+        assertNotNull(Common.connectReader(reader, CancellationToken.NONE));
+        byte[][] data = {Common.hex2Bytes(DATA)};
+        assertEquals(1, reader.writeSector(16, new int[]{0}, data,
+                MifareClassic.KEY_DEFAULT, false));
+        assertEquals(1, reader.writeSector(1, new int[]{4}, data,
+                MifareClassic.KEY_DEFAULT, false));
+        assertEquals(2, reader.writeSector(1, new int[]{0}, data,
+                new byte[6], false));
+        assertEquals(0, reader.writeSector(1, new int[]{0}, data,
+                MifareClassic.KEY_DEFAULT, false));
+        assertEquals(DATA, Common.bytes2Hex(card.getBlock(4)));
+    }
+}
@@ -0,0 +1,173 @@
+package com.example.nfccard;
+
+import android.nfc.tech.MifareClassic;
+import android.util.SparseArray;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+@RunWith(RobolectricTestRunner.class)
+public class CardIdentifierTest {
+
+    private static final byte[] ATQA_1K = {0x04, 0x00};
+    private static final byte[] ATQA_4K = {0x02, 0x00};
+
+    private static EmulatedCard createCard(int size, byte[] key, long seed) {
+        int sectors = size == MifareClassic.SIZE_4K ? 40 : 16;
+        byte[][] keys = new byte[sectors][];
+        Arrays.fill(keys, key);
+        return new EmulatedCard(size, keys, keys,
+                new EmulatedCard.RfModel(0, 0, 0, 0), new Random(seed));
+    }
+
+    private static MCReader connect(EmulatedCard card, int sak, byte[] atqa) {
+        MCReader reader = new MCReader(card, card.getUID(), (short) sak, atqa);
+        assertNotNull(Common.connectReader(reader, CancellationToken.NONE));
+        return reader;
+    }
+
+    @Test
+    public void classifiesFromAnticollisionData() {
+        assertEquals("MIFARE Classic 1K", CardIdentifier.classify(
+                0x08, ATQA_1K, 4, MifareClassic.SIZE_1K).getName());
+        assertEquals("MIFARE Classic 4K", CardIdentifier.classify(
+                0x18, ATQA_4K, 7, MifareClassic.SIZE_4K).getName());
+        assertSame(CardIdentifier.UNKNOWN_PROFILE, CardIdentifier.classify(
+                0x20, ATQA_1K, 4, MifareClassic.SIZE_1K));
+    }
+
+    @Test
+    public void unknownAtqaMatchesAnyProfile() {
+        assertEquals("MIFARE Classic 1K", CardIdentifier.classify(
+                0x08, null, 4, MifareClassic.SIZE_1K).getName());
+        assertEquals("MIFARE Classic 4K", CardIdentifier.classify(
+                0x18, null, 7, MifareClassic.SIZE_4K).getName());
+    }
+
+    @Test
+    public void identifiesWithOneAuthenticationAndOneRead() {
+        EmulatedCard card = createCard(MifareClassic.SIZE_1K,
+                MifareClassic.KEY_DEFAULT, 1);
+        MCReader reader = connect(card, 0x08, ATQA_1K);
+        int before = card.getRFOperations();
+
+        CardIdentifier.Identification id =
+                CardIdentifier.identify(reader, false);
+
+        assertEquals("MIFARE Classic 1K", id.getProfile().getName());
+        assertTrue(id.isConclusive());
+        assertTrue(id.isConsistent());
+        assertEquals(2, id.getRFTransactions());
+        assertEquals(2, card.getRFOperations() - before);
+
+    }
+
+    @Test
+    public void rereadsBlock0OfKnownUID() {
+        EmulatedCard card = createCard(MifareClassic.SIZE_1K,
+                MifareClassic.KEY_DEFAULT, 4);
+        MCReader reader = connect(card, 0x08, ATQA_1K);
+        assertTrue(CardIdentifier.identify(reader, false).isConsistent());
+
+        // Same UID, different block 0 (e.g. a clone).
+        card.getBlock(0)[4] ^= 0x01;
+        int before = card.getRFOperations();
+        CardIdentifier.Identification id =
+                CardIdentifier.identify(reader, false);
+        assertEquals(2, card.getRFOperations() - before);
+        assertFalse(id.isConsistent());
+    }
+
+    @Test
+    public void readsTrailerOnRequest() {
+        EmulatedCard card = createCard(MifareClassic.SIZE_4K,
+                MifareClassic.KEY_DEFAULT, 2);
+        CardIdentifier.Identification id = CardIdentifier.identify(
+                connect(card, 0x18, ATQA_4K), true);
+        assertEquals(3, id.getRFTransactions());
+        assertTrue(id.hasTransportConfiguration());
+    }
+
+    @Test
+    public void unknownKeyIsNotConclusive() {
+        byte[] key = {1, 2, 3, 4, 5, 6};
+        EmulatedCard card = createCard(MifareClassic.SIZE_1K, key, 3);
+        CardIdentifier.Identification id = CardIdentifier.identify(
+                connect(card, 0x08, ATQA_1K), false);
+        assertNull(id.getManufacturerBlock());
+        assertFalse(id.isConclusive());
+    }
+
+    @Test
+    public void stopsWhenCancelled() {
+        EmulatedCard card = createCard(MifareClassic.SIZE_1K,
+                MifareClassic.KEY_DEFAULT, 5);
+        MCReader reader = connect(card, 0x08, ATQA_1K);
+        CancellationToken token = new CancellationToken();
+        token.cancel();
+        int before = card.getRFOperations();
+        CardIdentifier.Identification id =
+                CardIdentifier.identify(reader, true, token);
+        assertEquals(0, card.getRFOperations() - before);
+        assertFalse(id.isConclusive());
+    }
+
+    @Test
+    public void keyMapOfBlankCard() {
+        CardProfile mini = CardIdentifier.classify(
+                0x09, ATQA_1K, 4, MifareClassic.SIZE_MINI);
+        SparseArray<byte[][]> keyMap = CardIdentifier.createKeyMap(
+                mini, MifareClassic.KEY_DEFAULT, 5);
+        assertEquals(5, keyMap.size());
+        for (int i = 0; i < keyMap.size(); i++) {
+            assertArrayEquals(MifareClassic.KEY_DEFAULT, keyMap.valueAt(i)[0]);
+            assertNull(keyMap.valueAt(i)[1]);
+        }
+    }
+
+    @Test
+    public void keyMapOfMadCardUsesDirectorySectors() {
+        CardProfile profile = CardIdentifier.classify(
+                0x18, ATQA_4K, 7, MifareClassic.SIZE_4K);
+        SparseArray<byte[][]> keyMap = CardIdentifier.createKeyMap(profile,
+                MifareClassic.KEY_MIFARE_APPLICATION_DIRECTORY, 40);
+        assertEquals(40, keyMap.size());
+        for (int sector : new int[]{0, 16}) {
+            assertArrayEquals(MifareClassic.KEY_MIFARE_APPLICATION_DIRECTORY,
+                    keyMap.get(sector)[0]);
+            assertArrayEquals(MifareClassic.KEY_DEFAULT, keyMap.get(sector)[1]);
+        }
+        for (int sector : new int[]{1, 15, 17, 39}) {
+            assertArrayEquals(MifareClassic.KEY_NFC_FORUM,
+                    keyMap.get(sector)[0]);
+            assertArrayEquals(MifareClassic.KEY_DEFAULT, keyMap.get(sector)[1]);
+        }
+    }
+
+    @Test
+    public void readsMadCardCompletely() {
+        byte[][] keysA = new byte[16][];
+        byte[][] keysB = new byte[16][];
+        Arrays.fill(keysA, MifareClassic.KEY_NFC_FORUM);
+        Arrays.fill(keysB, MifareClassic.KEY_DEFAULT);
+        keysA[0] = MifareClassic.KEY_MIFARE_APPLICATION_DIRECTORY;
+        EmulatedCard card = new EmulatedCard(MifareClassic.SIZE_1K, keysA,
+                keysB, new EmulatedCard.RfModel(0, 0, 0, 0), new Random(6));
+        MCReader reader = connect(card, 0x08, ATQA_1K);
+
+        CardIdentifier.Identification id =
+                CardIdentifier.identify(reader, false);
+        assertArrayEquals(MifareClassic.KEY_MIFARE_APPLICATION_DIRECTORY,
+                id.getKey());
+        SparseArray<String[]> dump = reader.readAsMuchAsPossible(
+                CardIdentifier.createKeyMap(id.getProfile(), id.getKey(),
+                        reader.getSectorCount()));
+        assertEquals(16, dump.size());
+    }
+}
@@ -0,0 +1,232 @@
+package com.example.nfccard;
+
+import android.content.Context;
+import android.util.SparseArray;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.*;
+
+@RunWith(RobolectricTestRunner.class)
+public class DumpExporterTest {
+
+    private static final String BLOCK =
+            "00112233445566778899AABBCCDDEEFF";
+
+    private ScanHistory mHistory;
+
+    @Before
+    public void setUp() {
+        Context context = RuntimeEnvironment.getApplication();
+        context.deleteDatabase(ScanHistory.DATABASE_NAME);
+        mHistory = new ScanHistory(context);
+        Common.getPreferences().edit()
+                .putLong(DumpExporter.PREF_HISTORY_CHECKPOINT, 0).commit();
+    }
+
+    @After
+    public void tearDown() {
+        mHistory.close();
+    }
+
+    private static String[] sector(int blockCount) {
+        String[] blocks = new String[blockCount];
+        for (int i = 0; i < blockCount; i++) {
+            blocks[i] = BLOCK;
+        }
+        return blocks;
+    }
+
+    private static String export(int format, String uid,
+                                 SparseArray<String[]> dump)
+            throws IOException {
+        return new String(exportBytes(format, uid, dump),
+                StandardCharsets.US_ASCII);
+    }
+
+    private static byte[] exportBytes(int format, String uid,
+                                      SparseArray<String[]> dump)
+            throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        DumpExporter exporter = new DumpExporter(out, format);
+        exporter.begin();
+        if (dump != null) {
+            exporter.writeCard(uid, dump);
+        }
+        exporter.end();
+        exporter.close();
+        return out.toByteArray();
+    }
+
+    @Test
+    public void jsonEscapesStrings() throws IOException {
+        SparseArray<String[]> dump = new SparseArray<>();
+        dump.put(1, new String[] {"a\"b\\c\n\u00e9"});
+        assertEquals("[\n{\"uid\":null,\"sectors\":"
+                        + "{\"1\":[\"a\\\"b\\\\c\\u000A\\u00E9\"]}}\n]\n",
+                export(DumpExporter.FORMAT_JSON, null, dump));
+    }
+
+    @Test
+    public void jsonWritesEmptyArrays() throws IOException {
+        assertEquals("[]\n", export(DumpExporter.FORMAT_JSON, null, null));
+        assertEquals("[\n{\"uid\":\"04A1B2C3\",\"sectors\":{}}\n]\n",
+                export(DumpExporter.FORMAT_JSON, "04A1B2C3",
+                        new SparseArray<>()));
+    }
+
+    @Test
+    public void csvWritesHeaders() throws IOException {
+        SparseArray<String[]> dump = new SparseArray<>();
+        dump.put(2, new String[] {BLOCK});
+        assertEquals("uid,sector,block,data\n04A1B2C3,2,0," + BLOCK + "\n",
+                export(DumpExporter.FORMAT_CSV, "04A1B2C3", dump));
+
+        long now = System.currentTimeMillis();
+        mHistory.record(new ScanRecord("04A1B2C3", now, 16, null, 120,
+                ScanRecord.OUTCOME_OK));
+        assertTrue(mHistory.awaitWritten(10000));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        DumpExporter exporter = new DumpExporter(out, DumpExporter.FORMAT_CSV);
+        exporter.begin();
+        exporter.writeHistory(mHistory, 0);
+        exporter.end();
+        String[] lines = new String(out.toByteArray(),
+                StandardCharsets.US_ASCII).split("\n");
+        assertEquals(2, lines.length);
+        assertEquals(String.join(",", ScanHistory.COLUMNS), lines[0]);
+        assertTrue(lines[1].endsWith(",04A1B2C3," + now + ",16,,120,"
+                + ScanRecord.OUTCOME_OK));
+    }
+
+    @Test
+    public void mfdHasFullCardSize() throws IOException {
+        SparseArray<String[]> dump = new SparseArray<>();
+        for (int i = 0; i < 4; i++) {
+            dump.put(i, sector(4));
+        }
+        assertEquals(1024,
+                exportBytes(DumpExporter.FORMAT_MFD, null, dump).length);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        DumpExporter exporter = new DumpExporter(out, DumpExporter.FORMAT_MFD);
+        exporter.writeCard(null, dump, 40);
+        exporter.end();
+        assertEquals(4096, out.size());
+    }
+
+    @Test
+    public void mfdWritesSectorsAtTheirOffset() throws IOException {
+        SparseArray<String[]> dump = new SparseArray<>();
+        dump.put(5, sector(4));
+        dump.put(33, sector(16));
+        byte[] image = exportBytes(DumpExporter.FORMAT_MFD, null, dump);
+        assertEquals(4096, image.length);
+        assertEquals(0, image[5 * 64 - 1]);
+        assertEquals(0x00, image[5 * 64]);
+        assertEquals(0x11, image[5 * 64 + 1]);
+        assertEquals((byte) 0xFF, image[6 * 64 - 1]);
+        assertEquals(0, image[6 * 64]);
+        int offset = 32 * 64 + 16 * 16;
+        assertEquals(0, image[offset - 1]);
+        assertEquals(0x11, image[offset + 1]);
+        assertEquals((byte) 0xFF, image[offset + 16 * 16 - 1]);
+        assertEquals(0, image[offset + 16 * 16]);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void mfdRejectsSectorsBeyondTheCard() throws IOException {
+        SparseArray<String[]> dump = new SparseArray<>();
+        dump.put(16, sector(4));
+        DumpExporter exporter = new DumpExporter(new ByteArrayOutputStream(),
+                DumpExporter.FORMAT_MFD);
+        exporter.writeCard(null, dump, 16);
+    }
+
+    @Test
+    public void rawSectorsFillGaps() throws IOException {
+        byte[] block = new byte[16];
+        block[0] = 0x42;
+        byte[][] blocks = {block, block, block, block};
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        DumpExporter exporter = new DumpExporter(out, DumpExporter.FORMAT_MFD);
+        exporter.writeRawSector(0, blocks);
+        exporter.writeRawSector(3, blocks);
+        exporter.endRawCard(16);
+        exporter.end();
+        byte[] image = out.toByteArray();
+        assertEquals(1024, image.length);
+        assertEquals(0x42, image[0]);
+        assertEquals(0, image[64]);
+        assertEquals(0x42, image[3 * 64]);
+        assertEquals(0, image[4 * 64]);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rawSectorsMustBeAscending() throws IOException {
+        byte[][] blocks = new byte[4][];
+        DumpExporter exporter = new DumpExporter(new ByteArrayOutputStream(),
+                DumpExporter.FORMAT_MFD);
+        exporter.writeRawSector(2, blocks);
+        exporter.writeRawSector(1, blocks);
+    }
+
+    private int exportNewHistory() throws IOException {
+        DumpExporter exporter = new DumpExporter(new ByteArrayOutputStream(),
+                DumpExporter.FORMAT_JSON);
+        exporter.begin();
+        int count = exporter.writeNewHistory(mHistory);
+        exporter.end();
+        exporter.close();
+        exporter.commitHistoryCheckpoint();
+        return count;
+    }
+
+    @Test
+    public void historyCheckpointRoundTrip() throws IOException {
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < 3; i++) {
+            mHistory.record(new ScanRecord("04A1B2C3", now + i, 16, null,
+                    120, ScanRecord.OUTCOME_OK));
+        }
+        assertTrue(mHistory.awaitWritten(10000));
+        assertEquals(3, exportNewHistory());
+        assertEquals(0, exportNewHistory());
+
+        for (int i = 0; i < 2; i++) {
+            mHistory.record(new ScanRecord("11223344", now + 10 + i, 16, null,
+                    120, ScanRecord.OUTCOME_OK));
+        }
+        assertTrue(mHistory.awaitWritten(10000));
+        assertEquals(2, exportNewHistory());
+        assertEquals(5, Common.getPreferences().getLong(
+                DumpExporter.PREF_HISTORY_CHECKPOINT, 0));
+    }
+
+    @Test
+    public void failedExportKeepsCheckpoint() throws IOException {
+        mHistory.record(new ScanRecord("04A1B2C3", System.currentTimeMillis(),
+                16, null, 120, ScanRecord.OUTCOME_OK));
+        assertTrue(mHistory.awaitWritten(10000));
+        DumpExporter exporter = new DumpExporter(new ByteArrayOutputStream(),
+                DumpExporter.FORMAT_JSON);
+        exporter.begin();
+        assertEquals(1, exporter.writeNewHistory(mHistory));
+        try {
+            exporter.commitHistoryCheckpoint();
+            fail("Checkpoint stored before end().");
+        } catch (IllegalStateException e) {
+            // Expected.
+        }
+        assertEquals(1, exportNewHistory());
+    }
+}
@@ -0,0 +1,265 @@
+package com.example.nfccard;
+
+import android.nfc.TagLostException;
+import android.nfc.tech.MifareClassic;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Emulated MIFARE Classic card (1K or 4K) for JVM tests. Every RF operation
+ * takes a random time (see {@link RfModel}) and faults (tag removed,
+ * short reads) can be injected.
+ */
+class EmulatedCard implements MifareClassicTech {
+
+    /**
+     * Default access conditions (transport configuration, key B readable).
+     */
+    static final byte[] DEFAULT_AC = {(byte) 0xFF, 0x07, (byte) 0x80, 0x69};
+
+    /**
+     * RF timing and fault model.
+     */
+    static class RfModel {
+        final long mBaseNanos;
+        final long mJitterNanos;
+        final double mTagLossRate;
+        final double mShortReadRate;
+
+        /**
+         * @param baseMicros    Minimal duration of an RF operation.
+         * @param jitterMicros  Mean of the (exponential) extra duration.
+         * @param tagLossRate   Probability that the tag is removed
+         *                      during a tap.
+         * @param shortReadRate Probability that a block read returns
+         *                      less than 16 bytes.
+         */
+        RfModel(long baseMicros, long jitterMicros, double tagLossRate,
+                double shortReadRate) {
+            mBaseNanos = baseMicros * 1000;
+            mJitterNanos = jitterMicros * 1000;
+            mTagLossRate = tagLossRate;
+            mShortReadRate = shortReadRate;
+        }
+    }
+
+    private final int mSize;
+    private final int mSectorCount;
+    private final byte[] mUID;
+    private final byte[][] mBlocks;
+    private final byte[][] mKeysA;
+    private final byte[][] mKeysB;
+    private final RfModel mRf;
+    private final Random mRandom;
+    private boolean mConnected = false;
+    private int mAuthSector = -1;
+    /**
+     * True if {@link #mAuthSector} was authenticated with a key B that
+     * cannot be used for access (see {@link #isKeyBReadable(int)}).
+     */
+    private boolean mAuthDenied = false;
+    private int mRFOperations = 0;
+    /**
+     * Number of RF operations until the tag is removed (-1 = never).
+     */
+    private int mOpsUntilLoss;
+
+    /**
+     * Create a card with random content.
+     *
+     * @param size          {@link MifareClassic#SIZE_1K} or
+     *                      {@link MifareClassic#SIZE_4K}.
+     * @param keysA         Key A per sector.
+     * @param keysB         Key B per sector.
+     * @param rf            RF timing and fault model.
+     * @param random        Source of randomness (content, timing, faults).
+     */
+    EmulatedCard(int size, byte[][] keysA, byte[][] keysB, RfModel rf,
+                 Random random) {
+        mSize = size;
+        mSectorCount = size == MifareClassic.SIZE_4K ? 40 : 16;
+        mRf = rf;
+        mRandom = random;
+        mUID = new byte[4];
+        random.nextBytes(mUID);
+        mKeysA = keysA;
+        mKeysB = keysB;
+        int blockCount = size == MifareClassic.SIZE_4K ? 256 : 64;
+        mBlocks = new byte[blockCount][16];
+        for (int sector = 0; sector < mSectorCount; sector++) {
+            int first = sectorToBlock(sector);
+            int last = first + getBlockCountInSector(sector) - 1;
+            for (int block = first; block < last; block++) {
+                random.nextBytes(mBlocks[block]);
+            }
+            System.arraycopy(keysA[sector], 0, mBlocks[last], 0, 6);
+            System.arraycopy(DEFAULT_AC, 0, mBlocks[last], 6, 4);
+            System.arraycopy(keysB[sector], 0, mBlocks[last], 10, 6);
+        }
+        System.arraycopy(mUID, 0, mBlocks[0], 0, 4);
+        mBlocks[0][4] = (byte) (mUID[0] ^ mUID[1] ^ mUID[2] ^ mUID[3]);
+        mOpsUntilLoss = random.nextDouble() < rf.mTagLossRate
+                ? random.nextInt(mSectorCount * 10) : -1;
+    }
+
+    byte[] getUID() {
+        return mUID;
+    }
+
+    /**
+     * @return Number of RF operations (connect, authenticate, read, write)
+     * so far.
+     */
+    int getRFOperations() {
+        return mRFOperations;
+    }
+
+    /**
+     * Get the content of a block (as stored on the card).
+     *
+     * @param blockIndex Block index.
+     * @return Block data (16 bytes).
+     */
+    byte[] getBlock(int blockIndex) {
+        return mBlocks[blockIndex];
+    }
+
+    /**
+     * Simulate the duration of an RF operation and the removal of the tag.
+     */
+    private void rf() throws TagLostException {
+        if (!mConnected) {
+            throw new TagLostException("Tag is not connected.");
+        }
+        if (mOpsUntilLoss == 0) {
+            mConnected = false;
+            throw new TagLostException("Tag was removed.");
+        }
+        if (mOpsUntilLoss > 0) {
+            mOpsUntilLoss--;
+        }
+        mRFOperations++;
+        long nanos = mRf.mBaseNanos;
+        if (mRf.mJitterNanos > 0) {
+            nanos += (long) (-mRf.mJitterNanos
+                    * Math.log(1 - mRandom.nextDouble()));
+        }
+        if (nanos > 0) {
+            LockSupport.parkNanos(nanos);
+        }
+    }
+
+    @Override
+    public void connect() throws IOException {
+        if (mOpsUntilLoss == 0) {
+            throw new IOException("Tag was removed.");
+        }
+        mConnected = true;
+        rf();
+    }
+
+    @Override
+    public void close() {
+        mConnected = false;
+        mAuthSector = -1;
+    }
+
+    @Override
+    public boolean isConnected() {
+        return mConnected;
+    }
+
+    @Override
+    public boolean authenticateSectorWithKeyA(int sectorIndex, byte[] key)
+            throws IOException {
+        mAuthDenied = false;
+        return authenticate(sectorIndex, key, mKeysA);
+    }
+
+    @Override
+    public boolean authenticateSectorWithKeyB(int sectorIndex, byte[] key)
+            throws IOException {
+        boolean ret = authenticate(sectorIndex, key, mKeysB);
+        // If key B is readable, it cannot serve for authentication (NXP).
+        // The authentication works, but reading and writing do not.
+        mAuthDenied = ret && isKeyBReadable(sectorIndex);
+        return ret;
+    }
+
+    /**
+     * Check if the sector has the transport configuration (access
+     * conditions FF0780), in which key B is readable.
+     */
+    private boolean isKeyBReadable(int sectorIndex) {
+        byte[] trailer = mBlocks[sectorToBlock(sectorIndex)
+                + getBlockCountInSector(sectorIndex) - 1];
+        return trailer[6] == DEFAULT_AC[0] && trailer[7] == DEFAULT_AC[1]
+                && trailer[8] == DEFAULT_AC[2];
+    }
+
+    private boolean authenticate(int sectorIndex, byte[] key, byte[][] keys)
+            throws IOException {
+        if (sectorIndex < 0 || sectorIndex >= mSectorCount) {
+            throw new ArrayIndexOutOfBoundsException(sectorIndex);
+        }
+        rf();
+        mAuthSector = Arrays.equals(key, keys[sectorIndex]) ? sectorIndex : -1;
+        return mAuthSector != -1;
+    }
+
+    @Override
+    public byte[] readBlock(int blockIndex) throws IOException {
+        rf();
+        if (mAuthSector == -1 || mAuthDenied || blockIndex < sectorToBlock(mAuthSector)
+                || blockIndex >= sectorToBlock(mAuthSector)
+                + getBlockCountInSector(mAuthSector)) {
+            mAuthSector = -1;
+            throw new IOException("Not authenticated.");
+        }
+        if (mRandom.nextDouble() < mRf.mShortReadRate) {
+            return new byte[10];
+        }
+        byte[] ret = mBlocks[blockIndex].clone();
+        if (blockIndex == sectorToBlock(mAuthSector)
+                + getBlockCountInSector(mAuthSector) - 1) {
+            // Key A can never be read.
+            Arrays.fill(ret, 0, 6, (byte) 0);
+        }
+        return ret;
+    }
+
+    @Override
+    public void writeBlock(int blockIndex, byte[] data) throws IOException {
+        rf();
+        if (mAuthSector == -1 || mAuthDenied || blockIndex < sectorToBlock(mAuthSector)
+                || blockIndex >= sectorToBlock(mAuthSector)
+                + getBlockCountInSector(mAuthSector)) {
+            mAuthSector = -1;
+            throw new IOException("Not authenticated.");
+        }
+        System.arraycopy(data, 0, mBlocks[blockIndex], 0, 16);
+    }
+
+    @Override
+    public int getSize() {
+        return mSize;
+    }
+
+    @Override
+    public int getSectorCount() {
+        return mSectorCount;
+    }
+
+    @Override
+    public int getBlockCountInSector(int sectorIndex) {
+        return sectorIndex < 32 ? 4 : 16;
+    }
+
+    @Override
+    public int sectorToBlock(int sectorIndex) {
+        return sectorIndex < 32 ? sectorIndex * 4 : 128 + (sectorIndex - 32) * 16;
+    }
+}
@@ -0,0 +1,100 @@
+package com.example.nfccard;
+
+import android.content.Context;
+import android.database.Cursor;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import static org.junit.Assert.*;
+
+@RunWith(RobolectricTestRunner.class)
+public class ScanHistoryTest {
+
+    private static final String UID = "04A1B2C3";
+    private ScanHistory mHistory;
+
+    @Before
+    public void setUp() {
+        Context context = RuntimeEnvironment.getApplication();
+        context.deleteDatabase(ScanHistory.DATABASE_NAME);
+        mHistory = new ScanHistory(context);
+    }
+
+    @After
+    public void tearDown() {
+        mHistory.close();
+    }
+
+    private static int count(Cursor cursor) {
+        try {
+            return cursor.getCount();
+        } finally {
+            cursor.close();
+        }
+    }
+
+    @Test
+    public void writesAllRecordsInBatches() {
+        long now = System.currentTimeMillis();
+        int records = 1200;
+        for (int i = 0; i < records; i++) {
+            mHistory.record(new ScanRecord(i % 2 == 0 ? UID : "11223344",
+                    now - records + i, 16, "FFFFFFFFFFFF", 120,
+                    ScanRecord.OUTCOME_OK));
+        }
+        assertTrue(mHistory.awaitWritten(10000));
+        assertEquals(records, count(mHistory.queryAfterId(0)));
+        assertEquals(records / 2, count(mHistory.queryByUID(UID, records)));
+    }
+
+    @Test
+    public void queriesByUIDNewestFirst() {
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < 5; i++) {
+            mHistory.record(new ScanRecord(UID, now - 5000 + i * 1000, i,
+                    null, 100, ScanRecord.OUTCOME_PARTIAL));
+        }
+        assertTrue(mHistory.awaitWritten(10000));
+        Cursor cursor = mHistory.queryByUID(UID, 3);
+        try {
+            assertEquals(3, cursor.getCount());
+            int timestamp = cursor.getColumnIndexOrThrow(
+                    ScanHistory.COLUMN_TIMESTAMP);
+            int keys = cursor.getColumnIndexOrThrow(
+                    ScanHistory.COLUMN_KEYS_USED);
+            long previous = Long.MAX_VALUE;
+            while (cursor.moveToNext()) {
+                assertTrue(cursor.getLong(timestamp) < previous);
+                assertTrue(cursor.isNull(keys));
+                previous = cursor.getLong(timestamp);
+            }
+            assertEquals(now - 3000, previous);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    @Test
+    public void prunesRecordsOlderThanRetention() {
+        long now = System.currentTimeMillis();
+        mHistory.record(new ScanRecord(UID, now - ScanHistory.RETENTION_MILLIS
+                - 60000, 16, null, 100, ScanRecord.OUTCOME_OK));
+        mHistory.record(new ScanRecord(UID, now - 60000, 16, null, 100,
+                ScanRecord.OUTCOME_OK));
+        assertTrue(mHistory.awaitWritten(10000));
+        Cursor cursor = mHistory.queryAfterId(0);
+        try {
+            assertEquals(1, cursor.getCount());
+            assertTrue(cursor.moveToFirst());
+            assertEquals(now - 60000, cursor.getLong(cursor
+                    .getColumnIndexOrThrow(ScanHistory.COLUMN_TIMESTAMP)));
+        } finally {
+            cursor.close();
+        }
+    }
+}
@@ -0,0 +1,342 @@
+package com.example.nfccard;
+
+import android.nfc.tech.MifareClassic;
+import android.util.SparseArray;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * End-to-end throughput and soak harness. Drives simulated taps through the
+ * same path as the app ({@link Common#startRead(long)}, the read worker of
+ * {@link Common#runRead(Runnable)} and
+ * {@link TapReader#read(MCReader, CancellationToken, boolean)}) against
+ * {@link EmulatedCard}s and reports throughput, latency percentiles,
+ * allocations per card and thread counts.
+ */
+class SoakHarness {
+
+    /**
+     * One kind of card of the card mix.
+     */
+    static class CardType {
+        final String mName;
+        final int mWeight;
+        final int mSize;
+        final boolean mDefaultKeys;
+        final int mLockedSectors;
+
+        /**
+         * @param name          Name for the report.
+         * @param weight        Relative frequency within the mix.
+         * @param size          {@link MifareClassic#SIZE_1K} or
+         *                      {@link MifareClassic#SIZE_4K}.
+         * @param defaultKeys   True for blank cards
+         *                      ({@link MifareClassic#KEY_DEFAULT}), false
+         *                      for NFC Forum formatted cards (MAD).
+         * @param lockedSectors Number of sectors (at the end) with
+         *                      unknown keys.
+         */
+        CardType(String name, int weight, int size, boolean defaultKeys,
+                 int lockedSectors) {
+            mName = name;
+            mWeight = weight;
+            mSize = size;
+            mDefaultKeys = defaultKeys;
+            mLockedSectors = lockedSectors;
+        }
+    }
+
+    /**
+     * Result of a run.
+     */
+    static class Report {
+        int mTaps;
+        int mOk;
+        int mPartial;
+        int mFailed;
+        int mCorrupt;
+        double mCardsPerMinute;
+        double mP50Millis;
+        double mP90Millis;
+        double mP99Millis;
+        long mBytesPerCard;
+        int mPeakThreads;
+
+        /**
+         * Compare this report with a baseline.
+         *
+         * @param baseline  Baseline values (see {@link #toProperties()}).
+         * @param tolerance Allowed relative deviation (e.g. 0.5 = 50%).
+         * @return Description of all regressions (empty if there are none).
+         */
+        List<String> findRegressions(Properties baseline, double tolerance) {
+            List<String> regressions = new ArrayList<>();
+            double cpm = getDouble(baseline, "cardsPerMinute");
+            if (cpm > 0 && mCardsPerMinute < cpm * (1 - tolerance)) {
+                regressions.add(String.format(Locale.US,
+                        "cards/minute %.1f < baseline %.1f",
+                        mCardsPerMinute, cpm));
+            }
+            double p99 = getDouble(baseline, "p99Millis");
+            if (p99 > 0 && mP99Millis > p99 * (1 + tolerance)) {
+                regressions.add(String.format(Locale.US,
+                        "p99 %.2f ms > baseline %.2f ms", mP99Millis, p99));
+            }
+            double bytes = getDouble(baseline, "bytesPerCard");
+            if (bytes > 0 && mBytesPerCard > bytes * (1 + tolerance)) {
+                regressions.add(String.format(Locale.US,
+                        "allocation %d bytes/card > baseline %.0f",
+                        mBytesPerCard, bytes));
+            }
+            double threads = getDouble(baseline, "peakThreads");
+            if (threads > 0 && mPeakThreads > threads * (1 + tolerance)) {
+                regressions.add(String.format(Locale.US,
+                        "peak threads %d > baseline %.0f",
+                        mPeakThreads, threads));
+            }
+            if (mCorrupt > 0) {
+                regressions.add(mCorrupt + " cards with wrong data");
+            }
+            return regressions;
+        }
+
+        private static double getDouble(Properties p, String key) {
+            String value = p.getProperty(key);
+            return value != null ? Double.parseDouble(value) : 0;
+        }
+
+        Properties toProperties() {
+            Properties p = new Properties();
+            p.setProperty("cardsPerMinute",
+                    String.format(Locale.US, "%.1f", mCardsPerMinute));
+            p.setProperty("p99Millis",
+                    String.format(Locale.US, "%.2f", mP99Millis));
+            p.setProperty("bytesPerCard", String.valueOf(mBytesPerCard));
+            p.setProperty("peakThreads", String.valueOf(mPeakThreads));
+            return p;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "%d taps (ok %d, partial %d, "
+                            + "failed %d, corrupt %d): %.1f cards/min, "
+                            + "p50 %.2f ms, p90 %.2f ms, p99 %.2f ms, "
+                            + "%d bytes/card, peak %d threads",
+                    mTaps, mOk, mPartial, mFailed, mCorrupt, mCardsPerMinute,
+                    mP50Millis, mP90Millis, mP99Millis, mBytesPerCard,
+                    mPeakThreads);
+        }
+    }
+
+    private static final byte[] ATQA_1K = {0x04, 0x00};
+    private static final byte[] ATQA_4K = {0x02, 0x00};
+    /**
+     * Access conditions of the sectors of NFC Forum formatted cards (key B
+     * can not be read).
+     */
+    private static final byte[] NFC_FORUM_AC = {0x7F, 0x07, (byte) 0x88,
+            0x40};
+
+    private final List<CardType> mMix = new ArrayList<>();
+    private int mTotalWeight = 0;
+    private EmulatedCard.RfModel mRf = new EmulatedCard.RfModel(0, 0, 0, 0);
+    private long mSeed = 42;
+    private boolean mQuickIdentify = false;
+
+    SoakHarness addCardType(CardType type) {
+        mMix.add(type);
+        mTotalWeight += type.mWeight;
+        return this;
+    }
+
+    SoakHarness setRfModel(EmulatedCard.RfModel rf) {
+        mRf = rf;
+        return this;
+    }
+
+    SoakHarness setSeed(long seed) {
+        mSeed = seed;
+        return this;
+    }
+
+    SoakHarness setQuickIdentify(boolean quickIdentify) {
+        mQuickIdentify = quickIdentify;
+        return this;
+    }
+
+    /**
+     * Run the given number of taps (one after another, like a user
+     * presenting card after card).
+     *
+     * @param taps Number of simulated taps.
+     * @return The report.
+     */
+    Report run(int taps) {
+        Random random = new Random(mSeed);
+        TurnaroundStats stats = new TurnaroundStats();
+        Report report = new Report();
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        threads.resetPeakThreadCount();
+        long allocatedBefore = allocatedBytes(threads);
+
+        for (int i = 0; i < taps; i++) {
+            CardType type = pickCardType(random);
+            EmulatedCard card = createCard(type, random);
+
+            long start = System.nanoTime();
+            int result = tap(card, type);
+            stats.record(start, System.nanoTime(), result >= 0);
+
+            if (result > 0) {
+                report.mOk++;
+            } else if (result == 0) {
+                report.mPartial++;
+            } else if (result == -1) {
+                report.mFailed++;
+            } else {
+                report.mCorrupt++;
+            }
+        }
+
+        report.mTaps = taps;
+        report.mCardsPerMinute = stats.getCardsPerMinute();
+        report.mP50Millis = stats.getLatencyPercentile(50);
+        report.mP90Millis = stats.getLatencyPercentile(90);
+        report.mP99Millis = stats.getLatencyPercentile(99);
+        report.mBytesPerCard = taps > 0
+                ? (allocatedBytes(threads) - allocatedBefore) / taps : 0;
+        report.mPeakThreads = threads.getPeakThreadCount();
+        return report;
+    }
+
+    /**
+     * One tap: read the card on the read worker like
+     * {@link MainActivity} does, wait for it and check the result.
+     *
+     * @return 1 = all readable sectors read (or identified), 0 = partially
+     * read (e.g. due to short reads), -1 = failed (tag lost), -2 = wrong
+     * data.
+     */
+    private int tap(EmulatedCard card, CardType type) {
+        boolean is4K = type.mSize == MifareClassic.SIZE_4K;
+        MCReader reader = new MCReader(card, card.getUID(),
+                (short) (is4K ? 0x18 : 0x08), is4K ? ATQA_4K : ATQA_1K);
+        CancellationToken token = Common.startRead(Common.READ_TIMEOUT);
+        TapReader.Result[] result = new TapReader.Result[1];
+        CountDownLatch done = new CountDownLatch(1);
+        Common.runRead(() -> {
+            try {
+                result[0] = TapReader.read(reader, token, mQuickIdentify);
+            } finally {
+                done.countDown();
+            }
+        });
+        try {
+            done.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return -1;
+        }
+        if (result[0] == null) {
+            return -1;
+        }
+        SparseArray<String[]> dump = result[0].getDump();
+        if (dump == null) {
+            return result[0].getOutcome() == ScanRecord.OUTCOME_OK ? 1 : -1;
+        }
+        if (!isDataCorrect(card, dump)) {
+            return -2;
+        }
+        int readable = card.getSectorCount() - type.mLockedSectors;
+        return dump.size() == readable ? 1 : 0;
+    }
+
+    /**
+     * Check the data blocks of the dump against the card.
+     */
+    private static boolean isDataCorrect(EmulatedCard card,
+                                         SparseArray<String[]> dump) {
+        for (int i = 0; i < dump.size(); i++) {
+            int sector = dump.keyAt(i);
+            String[] blocks = dump.valueAt(i);
+            int first = card.sectorToBlock(sector);
+            for (int j = 0; j < blocks.length - 1; j++) {
+                if (!blocks[j].equals(MCReader.NO_DATA) && !blocks[j].equals(
+                        Common.bytes2Hex(card.getBlock(first + j)))) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    private CardType pickCardType(Random random) {
+        int pick = random.nextInt(mTotalWeight);
+        for (CardType type : mMix) {
+            pick -= type.mWeight;
+            if (pick < 0) {
+                return type;
+            }
+        }
+        return mMix.get(mMix.size() - 1);
+    }
+
+    private EmulatedCard createCard(CardType type, Random random) {
+        int sectors = type.mSize == MifareClassic.SIZE_4K ? 40 : 16;
+        byte[][] keysA = new byte[sectors][];
+        byte[][] keysB = new byte[sectors][];
+        for (int i = 0; i < sectors; i++) {
+            if (i >= sectors - type.mLockedSectors) {
+                keysA[i] = new byte[6];
+                keysB[i] = new byte[6];
+                random.nextBytes(keysA[i]);
+                random.nextBytes(keysB[i]);
+            } else if (type.mDefaultKeys) {
+                keysA[i] = MifareClassic.KEY_DEFAULT;
+                keysB[i] = MifareClassic.KEY_DEFAULT;
+            } else {
+                keysA[i] = (i == 0 || i == 16)
+                        ? MifareClassic.KEY_MIFARE_APPLICATION_DIRECTORY
+                        : MifareClassic.KEY_NFC_FORUM;
+                keysB[i] = MifareClassic.KEY_DEFAULT;
+            }
+        }
+        EmulatedCard card = new EmulatedCard(type.mSize, keysA, keysB, mRf,
+                random);
+        if (!type.mDefaultKeys) {
+            for (int i = 0; i < sectors - type.mLockedSectors; i++) {
+                int trailer = card.sectorToBlock(i)
+                        + card.getBlockCountInSector(i) - 1;
+                System.arraycopy(NFC_FORUM_AC, 0, card.getBlock(trailer), 6,
+                        NFC_FORUM_AC.length);
+            }
+        }
+        return card;
+    }
+
+    /**
+     * Bytes allocated by all live threads so far (HotSpot only, 0 otherwise).
+     */
+    private static long allocatedBytes(ThreadMXBean threads) {
+        if (!(threads instanceof com.sun.management.ThreadMXBean)) {
+            return 0;
+        }
+        com.sun.management.ThreadMXBean hotspot =
+                (com.sun.management.ThreadMXBean) threads;
+        long sum = 0;
+        for (long bytes : hotspot.getThreadAllocatedBytes(
+                threads.getAllThreadIds())) {
+            if (bytes > 0) {
+                sum += bytes;
+            }
+        }
+        return sum;
+    }
+}
@@ -0,0 +1,90 @@
+package com.example.nfccard;
+
+import android.nfc.tech.MifareClassic;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.Properties;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Soak test of the whole read path against emulated cards. The number of
+ * taps and the tolerance can be set with the Gradle properties "soak.taps"
+ * and "soak.tolerance" (forwarded as system properties).
+ *
+ * The throughput gate ({@link #throughputMatchesBaseline()}) depends on the
+ * machine and only runs with "./gradlew soakTest". The report of the last
+ * run is written to "build/soak-report.properties" and can be used as new
+ * baseline ("src/test/resources/soak-baseline.properties").
+ */
+@RunWith(RobolectricTestRunner.class)
+public class SoakHarnessTest {
+
+    private static SoakHarness.Report runSoak() {
+        return new SoakHarness()
+                .addCardType(new SoakHarness.CardType(
+                        "1K default", 6, MifareClassic.SIZE_1K, true, 0))
+                .addCardType(new SoakHarness.CardType(
+                        "1K NFC Forum", 2, MifareClassic.SIZE_1K, false, 2))
+                .addCardType(new SoakHarness.CardType(
+                        "4K default", 1, MifareClassic.SIZE_4K, true, 8))
+                .setRfModel(new EmulatedCard.RfModel(50, 20, 0.05, 0.01))
+                .run(Integer.getInteger("soak.taps", 200));
+    }
+
+    @Test
+    public void readsEmulatedCardsCorrectly() {
+        SoakHarness.Report report = new SoakHarness()
+                .addCardType(new SoakHarness.CardType(
+                        "1K default", 1, MifareClassic.SIZE_1K, true, 0))
+                .addCardType(new SoakHarness.CardType(
+                        "4K NFC Forum", 1, MifareClassic.SIZE_4K, false, 0))
+                .addCardType(new SoakHarness.CardType(
+                        "1K locked", 1, MifareClassic.SIZE_1K, true, 4))
+                .run(30);
+        assertEquals(report.toString(), 30, report.mOk);
+        assertEquals(0, report.mCorrupt);
+    }
+
+    @Test
+    public void soakWithFaults() {
+        SoakHarness.Report report = runSoak();
+        assertEquals(report.toString(), 0, report.mCorrupt);
+        assertTrue(report.toString(), report.mOk > report.mTaps / 2);
+    }
+
+    @Test
+    public void throughputMatchesBaseline() throws IOException {
+        assumeTrue("Throughput gate only runs with soakTest.",
+                Boolean.getBoolean("soak.gate"));
+        double tolerance = Double.parseDouble(
+                System.getProperty("soak.tolerance", "0.5"));
+        SoakHarness.Report report = runSoak();
+
+        File out = new File("build", "soak-report.properties");
+        if (out.getParentFile().isDirectory()) {
+            try (OutputStream os = new FileOutputStream(out)) {
+                report.toProperties().store(os, "Soak test report");
+            }
+        }
+
+        Properties baseline = new Properties();
+        try (InputStream is = getClass().getResourceAsStream(
+                "/soak-baseline.properties")) {
+            assertNotNull("No baseline.", is);
+            baseline.load(is);
+        }
+        List<String> regressions = report.findRegressions(baseline, tolerance);
+        assertTrue("Regressions: " + regressions, regressions.isEmpty());
+    }
+}
@@ -0,0 +1,77 @@
+package com.example.nfccard;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class SpscRingTest {
+
+    @Test
+    public void roundsCapacityUpToPowerOfTwo() {
+        assertEquals(2, new SpscRing<Integer>(0).capacity());
+        assertEquals(2, new SpscRing<Integer>(1).capacity());
+        assertEquals(2, new SpscRing<Integer>(2).capacity());
+        assertEquals(4, new SpscRing<Integer>(3).capacity());
+        assertEquals(8, new SpscRing<Integer>(8).capacity());
+        assertEquals(16, new SpscRing<Integer>(9).capacity());
+    }
+
+    @Test
+    public void rejectsOfferWhenFull() {
+        SpscRing<Integer> ring = new SpscRing<>(4);
+        for (int i = 0; i < 4; i++) {
+            assertTrue(ring.offer(i));
+        }
+        assertFalse(ring.offer(4));
+        assertEquals(4, ring.size());
+        assertEquals(Integer.valueOf(0), ring.poll());
+        assertTrue(ring.offer(4));
+        assertFalse(ring.offer(5));
+    }
+
+    @Test
+    public void keepsOrderAcrossWraparound() {
+        SpscRing<Integer> ring = new SpscRing<>(4);
+        assertNull(ring.poll());
+        int next = 0;
+        int expected = 0;
+        // Fill and drain partially, so head and tail wrap many times.
+        for (int round = 0; round < 100; round++) {
+            while (ring.offer(next)) {
+                next++;
+            }
+            for (int i = 0; i < 3; i++) {
+                assertEquals(Integer.valueOf(expected++), ring.poll());
+            }
+        }
+        while (!ring.isEmpty()) {
+            assertEquals(Integer.valueOf(expected++), ring.poll());
+        }
+        assertEquals(next, expected);
+        assertNull(ring.poll());
+        assertEquals(0, ring.size());
+    }
+
+    @Test(timeout = 10000)
+    public void handsOverBetweenThreads() throws InterruptedException {
+        final int count = 100000;
+        final SpscRing<Integer> ring = new SpscRing<>(8);
+        Thread producer = new Thread(() -> {
+            for (int i = 0; i < count; i++) {
+                while (!ring.offer(i)) {
+                    Thread.yield();
+                }
+            }
+        });
+        producer.start();
+        for (int i = 0; i < count; i++) {
+            Integer element;
+            while ((element = ring.poll()) == null) {
+                Thread.yield();
+            }
+            assertEquals(i, element.intValue());
+        }
+        producer.join();
+        assertTrue(ring.isEmpty());
+    }
+}
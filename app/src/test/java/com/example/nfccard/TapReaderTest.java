@@ -0,0 +1,98 @@
+package com.example.nfccard;
+
+import android.database.Cursor;
+import android.nfc.tech.MifareClassic;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+@RunWith(RobolectricTestRunner.class)
+public class TapReaderTest {
+
+    private static final byte[] ATQA_1K = {0x04, 0x00};
+
+    private static MCReader createReader(long seed) {
+        byte[][] keys = new byte[16][];
+        Arrays.fill(keys, MifareClassic.KEY_DEFAULT);
+        EmulatedCard card = new EmulatedCard(MifareClassic.SIZE_1K, keys,
+                keys, new EmulatedCard.RfModel(0, 0, 0, 0), new Random(seed));
+        return new MCReader(card, card.getUID(), (short) 0x08, ATQA_1K);
+    }
+
+    /**
+     * Get the newest history entry of the reader's card.
+     *
+     * @return Sectors read, keys used and outcome.
+     */
+    private static String[] lastRecord(MCReader reader) {
+        ScanHistory history = Common.getScanHistory();
+        assertNotNull(history);
+        assertTrue(history.awaitWritten(10000));
+        Cursor cursor = history.queryByUID(
+                Common.bytes2Hex(reader.getUID()), 1);
+        try {
+            assertTrue("Tap not recorded.", cursor.moveToFirst());
+            return new String[] {
+                    cursor.getString(cursor.getColumnIndexOrThrow(
+                            ScanHistory.COLUMN_SECTORS_READ)),
+                    cursor.getString(cursor.getColumnIndexOrThrow(
+                            ScanHistory.COLUMN_KEYS_USED)),
+                    cursor.getString(cursor.getColumnIndexOrThrow(
+                            ScanHistory.COLUMN_OUTCOME))};
+        } finally {
+            cursor.close();
+        }
+    }
+
+    @Test
+    public void recordsConclusiveIdentification() {
+        MCReader reader = createReader(7);
+        TapReader.Result result = TapReader.read(reader, new CancellationToken(),
+                true);
+        assertEquals(ScanRecord.OUTCOME_OK, result.getOutcome());
+        assertNull(result.getDump());
+        assertTrue(result.getIdentification().isConclusive());
+        assertArrayEquals(new String[] {"1",
+                        Common.bytes2Hex(MifareClassic.KEY_DEFAULT),
+                        String.valueOf(ScanRecord.OUTCOME_OK)},
+                lastRecord(reader));
+    }
+
+    @Test
+    public void recordsFailedConnect() {
+        MCReader reader = createReader(8);
+        CancellationToken token = new CancellationToken();
+        token.cancel();
+        TapReader.Result result = TapReader.read(reader, token, false);
+        assertEquals(ScanRecord.OUTCOME_CANCELLED, result.getOutcome());
+        assertNull(result.getIdentification());
+        assertArrayEquals(new String[] {"0", null,
+                        String.valueOf(ScanRecord.OUTCOME_CANCELLED)},
+                lastRecord(reader));
+    }
+
+    @Test
+    public void fullReadIsRecordedOnce() {
+        MCReader reader = createReader(9);
+        TapReader.Result result = TapReader.read(reader, new CancellationToken(),
+                false);
+        assertEquals(ScanRecord.OUTCOME_OK, result.getOutcome());
+        assertEquals(16, result.getDump().size());
+        assertEquals(16, result.getSectorsRequested());
+        ScanHistory history = Common.getScanHistory();
+        assertTrue(history.awaitWritten(10000));
+        Cursor cursor = history.queryByUID(
+                Common.bytes2Hex(reader.getUID()), 10);
+        try {
+            assertEquals(1, cursor.getCount());
+        } finally {
+            cursor.close();
+        }
+    }
+}